@@ -3,7 +3,12 @@ import relay.RelayConnectionStarter;
 public class Main {
 	public static void main(String[] args) {
 		System.out.println("Hello World");
-		RelayConnectionStarter.init("193.29.58.141", 19002);
+		// Main <relay host> <relay port> connects to another relay, e.g. the local load test emulator
+		if (args.length >= 2) {
+			RelayConnectionStarter.init(args[0], Integer.parseInt(args[1]));
+		} else {
+			RelayConnectionStarter.init("193.29.58.141", 19002);
+		}
 	}
 
 	/* (non-Java-doc)
@@ -0,0 +1,152 @@
+package relay;
+
+/**
+ * Node settings, read once from the system properties (-Drelay.xxx=...) so they can be tuned per
+ * node without a rebuild.
+ */
+public final class RelayConfig {
+
+    /* Relay link implementation:
+    *  socket - blocking SSLSocket read by a dedicated thread and written by its relay-uplink-writer
+    *           thread, which takes the frames from the link's UplinkRing
+    *  engine - non-blocking SSLEngine registered on the selector next to the destination channels */
+    public static final String LINK_MODE = System.getProperty("relay.link.mode", "socket");
+
+    /* Number of TLS connections to the relay. Each link has its own reader (socket mode) or reactor
+    *  (engine mode) and cipher stream, the relay pins every session to one of them by its id */
+    public static final int RELAY_LINKS = Math.max(1, Integer.getInteger("relay.links", 1));
+
+    /* Session engine:
+    *  nio     - the destination channels are multiplexed over the reactor threads
+    *  virtual - one virtual thread per session with blocking destination channels */
+    public static final String SESSION_ENGINE = System.getProperty("relay.engine", "nio");
+
+    /* TLS of the relay links, comma separated. TLS 1.3 first, then the TLS 1.2 ECDHE suites with
+    *  an AEAD cipher; the RSA key exchange and CBC suites are left out, a relay that offers nothing
+    *  else has to be listed here explicitly. Names the JDK does not support are skipped */
+    public static final String[] TLS_PROTOCOLS = list(System.getProperty("relay.tls.protocols", "TLSv1.3,TLSv1.2"));
+    public static final String[] TLS_CIPHER_SUITES = list(System.getProperty("relay.tls.cipherSuites",
+            "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,TLS_CHACHA20_POLY1305_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,"
+            + "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"));
+
+    /* Uplink frame compression: deflate offers it to the relay in the TLS handshake (ALPN) and the
+    *  frames are compressed if the relay selects it, off sends them as they are. Payloads under
+    *  minBytes, and payloads whose sampled byte entropy is above maxEntropyBits per byte (TLS
+    *  records, media, archives), are sent raw without trying. The level is the Deflater level */
+    public static final String COMPRESSION = System.getProperty("relay.compression", "off");
+    public static final int COMPRESSION_MIN_BYTES = Math.max(0, Integer.getInteger("relay.compression.minBytes", 256));
+    public static final double COMPRESSION_MAX_ENTROPY_BITS = Double.parseDouble(System.getProperty("relay.compression.maxEntropyBits", "7.0"));
+    public static final int COMPRESSION_LEVEL = Math.min(9, Math.max(1, Integer.getInteger("relay.compression.level", 1)));
+
+    /* Delay before reconnecting a broken relay link: the first attempt is immediate, then a random
+    *  delay up to a ceiling that doubles from minMs to maxMs with every failed attempt */
+    public static final int RECONNECT_MIN_MS = Math.max(1, Integer.getInteger("relay.reconnect.minMs", 100));
+    public static final int RECONNECT_MAX_MS = Math.max(RECONNECT_MIN_MS, Integer.getInteger("relay.reconnect.maxMs", 30000));
+
+    // Number of reactor threads the destination sessions are spread over
+    public static final int REACTORS = Math.max(1, Integer.getInteger("relay.reactors",
+            Runtime.getRuntime().availableProcessors()));
+
+    /* Uplink frames are coalesced until the batch reaches this many bytes or its first frame has
+    *  waited this many microseconds, whichever comes first (0 microseconds flushes every frame) */
+    public static final int UPLINK_FLUSH_BYTES = Math.max(0, Integer.getInteger("relay.uplink.flushBytes", 16 * 1024));
+    public static final int UPLINK_FLUSH_MICROS = Math.max(0, Integer.getInteger("relay.uplink.flushMicros", 200));
+
+    /* Destination reads: the first read size of a session, the smallest size it shrinks to (it grows
+    *  up to a full 65535 bytes frame), and how many reads a reactor does for one readiness event
+    *  of a destination before it moves on to the next one */
+    public static final int READ_INITIAL_BYTES = Math.min(0xFFFF, Math.max(64, Integer.getInteger("relay.read.initialBytes", 4096)));
+    public static final int READ_MIN_BYTES = Math.min(READ_INITIAL_BYTES, Math.max(64, Integer.getInteger("relay.read.minBytes", 512)));
+    public static final int READ_BUDGET = Math.max(1, Integer.getInteger("relay.read.budget", 4));
+
+    /* Uplink flow control: the bytes a session may have read from its destination and not yet handed
+    *  to the relay link before it stops reading, the bytes a session may send in each deficit round
+    *  robin turn, and the bytes a link buffers (the frames in a socket link's ring, the encrypted
+    *  records of an engine link) before the sessions wait for it */
+    public static final int UPLINK_CREDIT_BYTES = Math.max(0xFFFF, Integer.getInteger("relay.uplink.creditBytes", 256 * 1024));
+    public static final int UPLINK_QUANTUM_BYTES = Math.max(1024, Integer.getInteger("relay.uplink.quantumBytes", 16 * 1024));
+    public static final int UPLINK_LINK_BUFFER_BYTES = Math.max(64 * 1024, Integer.getInteger("relay.uplink.linkBufferBytes", 1024 * 1024));
+
+    /* How the writer thread of a socket link waits for frames: spin, yield or park. Spinning and
+    *  yielding answer a frame sooner but keep a core busy per link */
+    public static final String UPLINK_WAIT_STRATEGY = System.getProperty("relay.uplink.waitStrategy", "park");
+
+    /* Direct memory the buffer pool keeps for relay frames and destination writes: mb for the 1, 4
+    *  and 16 KB buffers, and for the 64 KB buffers of full frames the credit window of bulkSessions
+    *  sessions reading full frames at once, unless frameMb sets it. Slabs are only allocated as
+    *  the buffers are needed, these are ceilings */
+    public static final long BUFFER_POOL_BYTES = Math.max(0, Integer.getInteger("relay.bufferPool.mb", 64)) * 1024L * 1024L;
+    public static final int BUFFER_POOL_BULK_SESSIONS = Math.max(0, Integer.getInteger("relay.bufferPool.bulkSessions", 256));
+    public static final long BUFFER_POOL_FRAME_BYTES = frameBytes(Integer.getInteger("relay.bufferPool.frameMb"));
+
+    /* Resolution of the SOCKS 5 domain names: resolver threads, cached names, and how long
+    *  successful and failed lookups are cached. The JDK resolver does not expose the record TTLs */
+    public static final int DNS_THREADS = Math.max(1, Integer.getInteger("relay.dns.threads", 4));
+    public static final int DNS_CACHE_SIZE = Math.max(0, Integer.getInteger("relay.dns.cacheSize", 4096));
+    public static final int DNS_TTL_SECONDS = Math.max(0, Integer.getInteger("relay.dns.ttlSeconds", 60));
+    public static final int DNS_NEGATIVE_TTL_SECONDS = Math.max(0, Integer.getInteger("relay.dns.negativeTtlSeconds", 10));
+
+    /* Delay before the next address of a destination is tried while the previous attempts are
+    *  still connecting (Happy Eyeballs, RFC 8305 recommends 250 ms) */
+    public static final int CONNECT_ATTEMPT_DELAY_MS = Math.max(10, Integer.getInteger("relay.connect.attemptDelayMs", 250));
+
+    /* Data a client may send before its destination is connected, a TLS ClientHello pipelined right
+    *  after the CONNECT request for instance. It is written as soon as the connection is up, a
+    *  session that sends more is dropped */
+    public static final int EARLY_DATA_BYTES = Math.max(0, Integer.getInteger("relay.connect.earlyDataBytes", 64 * 1024));
+
+    /* Requests split over several frames: how long the rest may take to arrive and how many may
+    *  wait at once, over all the links. A session over either limit is closed */
+    public static final int REQUEST_TIMEOUT_MS = Math.max(1, Integer.getInteger("relay.connect.requestTimeoutMs", 10000));
+    public static final int PENDING_REQUESTS = Math.max(1, Integer.getInteger("relay.connect.pendingRequests", 4096));
+
+    /* Session timeouts enforced by the reactors' timer wheels: connecting to the destination,
+    *  sessions without traffic in either direction, and how long a closed session keeps writing the
+    *  data still queued for its destination. The wheel ticks every relay.timer.tickMs */
+    public static final int CONNECT_TIMEOUT_MS = Math.max(1, Integer.getInteger("relay.timeout.connectMs", 10000));
+    public static final int IDLE_TIMEOUT_SECONDS = Math.max(1, Integer.getInteger("relay.timeout.idleSeconds", 300));
+    public static final int LINGER_MS = Math.max(0, Integer.getInteger("relay.timeout.lingerMs", 5000));
+
+    // UDP ASSOCIATE sessions without a datagram in either direction for this long are closed
+    public static final int UDP_IDLE_TIMEOUT_SECONDS = Math.max(1, Integer.getInteger("relay.timeout.udpIdleSeconds", 60));
+    public static final int TIMER_TICK_MS = Math.max(1, Integer.getInteger("relay.timer.tickMs", 10));
+
+    /* Level of the node log (DEBUG, INFO, WARN, ERROR or OFF) and number of lines the log ring holds
+    *  before new lines are dropped */
+    public static final String LOG_LEVEL = System.getProperty("relay.log.level", "INFO");
+    public static final int LOG_BUFFER_SIZE = Math.max(16, Integer.getInteger("relay.log.bufferSize", 8192));
+
+    /* Metrics export: the relay:type=Metrics JMX bean, and a file rewritten with the current values
+    *  every interval (an empty file name or a 0 interval disables the dump) */
+    public static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("relay.metrics.jmx", "true"));
+    public static final String METRICS_FILE = System.getProperty("relay.metrics.file", "relay-metrics.txt");
+    public static final int METRICS_INTERVAL_SECONDS = Math.max(0, Integer.getInteger("relay.metrics.intervalSeconds", 10));
+
+    private RelayConfig() {
+    }
+
+    public static boolean useEngineLink() {
+        return "engine".equalsIgnoreCase(LINK_MODE);
+    }
+
+    public static boolean offerCompression() {
+        return "deflate".equalsIgnoreCase(COMPRESSION);
+    }
+
+    public static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(SESSION_ENGINE);
+    }
+
+    private static long frameBytes(Integer frameMb) {
+        if (frameMb == null) {
+            return (long) UPLINK_CREDIT_BYTES * BUFFER_POOL_BULK_SESSIONS;
+        }
+        return Math.max(0, frameMb) * 1024L * 1024L;
+    }
+
+    private static String[] list(String value) {
+        return value.trim().split("\\s*,\\s*");
+    }
+}
@@ -1,46 +1,141 @@
 package relay;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import relay.communication.EngineRelayLink;
+import relay.communication.FrameCompressor;
 import relay.communication.RelayCommunicationHandler;
+import relay.communication.RelayLink;
+import relay.communication.SocketRelayLink;
+import relay.log.Log;
 
+/**
+ * Opens the TLS links to the relay. Every link is created from the default {@link SSLContext} for
+ * the same relay host and port, so its client session cache resumes the previous TLS session (a
+ * TLS 1.3 ticket) when a link is reconnected instead of doing a full handshake.
+ */
 public class RelayConnectionStarter {
 
     static private int relayPort;
     static private String relayIP;
 
+    // Opens the RELAY_LINKS connections to the relay and starts the node on them
     public static void init(String relayIP, int relayPort){
         RelayConnectionStarter.relayIP = relayIP;
         RelayConnectionStarter.relayPort = relayPort;
-        openRelayConnection();
-    }
 
-    public static void openRelayConnection(){
+        RelayLink[] relayLinks = new RelayLink[RelayConfig.RELAY_LINKS];
         try{
-            SSLContext sslContext = SSLContext.getDefault();
-            SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-            final SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket();
-            socket.setReuseAddress(true);
-            socket.setTcpNoDelay(true);
-            socket.connect(new InetSocketAddress(relayIP, relayPort), 4000);
-            socket.setEnabledProtocols(new String[]{"TLSv1.2"});
-            socket.setEnabledCipherSuites(new String[]{
-                    "TLS_RSA_WITH_AES_256_CBC_SHA",
-                    "TLS_RSA_WITH_AES_128_CBC_SHA",
-                    "TLS_RSA_WITH_AES_256_GCM_SHA384",
-                    "TLS_RSA_WITH_AES_128_GCM_SHA256"
-            });
-
-            Thread proxyHandlerThread = new Thread(new RelayCommunicationHandler(socket));
-            proxyHandlerThread.setPriority(Thread.MAX_PRIORITY);
-            proxyHandlerThread.start();
-        }catch (Exception e){
-            e.printStackTrace();
-            System.exit(73);
+            for (int i = 0; i < relayLinks.length; i++) {
+                relayLinks[i] = connect();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Thread proxyHandlerThread = new Thread(new RelayCommunicationHandler(relayLinks, RelayConnectionStarter::connect));
+        proxyHandlerThread.setPriority(Thread.MAX_PRIORITY);
+        proxyHandlerThread.start();
+    }
+
+    /* Opens a relay link, retrying until the relay answers. The first attempt is immediate, the
+    *  next ones wait a random delay below a ceiling that doubles up to RECONNECT_MAX_MS, so nodes
+    *  that lost the relay together do not all come back at the same instant */
+    public static RelayLink connect() throws InterruptedException {
+        long ceiling = RelayConfig.RECONNECT_MIN_MS;
+        while (true) {
+            try {
+                return RelayConfig.useEngineLink() ? openEngineRelayConnection() : openRelayConnection();
+            } catch (IOException | NoSuchAlgorithmException | IllegalArgumentException e) {
+                long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+                Log.warn(null, "RELAY", "could not connect to the relay: {}, retrying in {} ms", e.getMessage(), delay);
+                Thread.sleep(delay);
+                ceiling = Math.min(RelayConfig.RECONNECT_MAX_MS, ceiling * 2);
+            }
+        }
+    }
+
+    public static SocketRelayLink openRelayConnection() throws IOException, NoSuchAlgorithmException {
+        SSLContext sslContext = SSLContext.getDefault();
+        SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
+
+        Socket plainSocket = new Socket();
+        try {
+            plainSocket.setReuseAddress(true);
+            plainSocket.setTcpNoDelay(true);
+            plainSocket.connect(new InetSocketAddress(relayIP, relayPort), 4000);
+
+            // layered with the relay host and port, which key the session cache
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(plainSocket, relayIP, relayPort, true);
+            socket.setEnabledProtocols(supported(RelayConfig.TLS_PROTOCOLS, socket.getSupportedProtocols()));
+            socket.setEnabledCipherSuites(supported(RelayConfig.TLS_CIPHER_SUITES, socket.getSupportedCipherSuites()));
+            socket.setSSLParameters(offerCompression(socket.getSSLParameters()));
+
+            long handshakeStartedAt = System.nanoTime();
+            socket.startHandshake();
+            Log.info(null, null, "Relay link handshake completed in {} ms: {}",
+                    (System.nanoTime() - handshakeStartedAt) / 1_000_000L,
+                    socket.getSession().getProtocol() + " " + socket.getSession().getCipherSuite()
+                            + (FrameCompressor.ALPN_DEFLATE.equals(socket.getApplicationProtocol()) ? " deflate" : ""));
+
+            return new SocketRelayLink(socket);
+        } catch (IOException e) {
+            plainSocket.close();
+            throw e;
+        }
+    }
+
+    /* Opens the relay connection as a non-blocking channel driven by an SSLEngine, so the thread
+    *  of one reactor handles the relay link next to that reactor's destination channels. The
+    *  handshake runs on that reactor */
+    public static EngineRelayLink openEngineRelayConnection() throws IOException, NoSuchAlgorithmException {
+        SSLContext sslContext = SSLContext.getDefault();
+        SSLEngine engine = sslContext.createSSLEngine(relayIP, relayPort);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(supported(RelayConfig.TLS_PROTOCOLS, engine.getSupportedProtocols()));
+        engine.setEnabledCipherSuites(supported(RelayConfig.TLS_CIPHER_SUITES, engine.getSupportedCipherSuites()));
+        engine.setSSLParameters(offerCompression(engine.getSSLParameters()));
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(relayIP, relayPort), 4000);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+
+        return new EngineRelayLink(channel, engine);
+    }
+
+    /* With relay.compression=deflate the link offers compressed frames through ALPN, falling back
+    *  to plain frames; a relay that does not know ALPN ignores the offer and gets plain frames too */
+    private static SSLParameters offerCompression(SSLParameters parameters) {
+        if (RelayConfig.offerCompression()) {
+            parameters.setApplicationProtocols(new String[]{ FrameCompressor.ALPN_DEFLATE, FrameCompressor.ALPN_PLAIN });
+        }
+        return parameters;
+    }
+
+    // The configured names the JDK supports, in the configured order
+    private static String[] supported(String[] configured, String[] supported) {
+        return Arrays.stream(configured)
+                .filter(Arrays.asList(supported)::contains)
+                .toArray(String[]::new);
     }
 }
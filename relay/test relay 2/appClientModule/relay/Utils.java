@@ -1,11 +1,7 @@
 package relay;
 
-import static java.lang.String.format;
-
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 
 import relay.exception.RelayIOException;
 
@@ -32,25 +28,23 @@ public final class Utils {
         return true;
     }
 
-    public static String extractRemoteID(byte[] idBytes) {
-        return extractIPAddress(idBytes) + extractPort(idBytes);
-    }
-
-    // Extracts the IP address from the 4 bytes format
-    private static String extractIPAddress(byte[] idBytes) {
-        byte[] ipBytes = new byte[4];
-        System.arraycopy(idBytes, 0, ipBytes, 0, 4);
-        try {
-            InetAddress inetAddress = InetAddress.getByAddress(ipBytes);
-            return inetAddress.getHostAddress();
-        } catch (UnknownHostException uhe){
-            // ignore. this id format is temporary
-            return "0.0.0.0";
-        }
+    /* Packs the 6 byte session id (IPv4 address and port of the end user browser) into a long,
+    *  so sessions can be looked up without allocating */
+    public static long extractSessionID(byte[] idBytes) {
+        return ((idBytes[0] & 0xFFL) << 40) |
+                ((idBytes[1] & 0xFFL) << 32) |
+                ((idBytes[2] & 0xFFL) << 24) |
+                ((idBytes[3] & 0xFFL) << 16) |
+                ((idBytes[4] & 0xFFL) << 8) |
+                (idBytes[5] & 0xFFL);
     }
 
-    // Extracts the port number from the 2 bytes format
-    private static int extractPort(byte[] idBytes) {
-        return ((idBytes[4] & 0xFF) << 8) | (idBytes[5] & 0xFF); // Big-endian
+    // Formats a session id as ip:port, to be used only for logging
+    public static String sessionIDToString(long sessionID) {
+        return ((sessionID >>> 40) & 0xFF) + "." +
+                ((sessionID >>> 32) & 0xFF) + "." +
+                ((sessionID >>> 24) & 0xFF) + "." +
+                ((sessionID >>> 16) & 0xFF) + ":" +
+                (sessionID & 0xFFFF);
     }
 }
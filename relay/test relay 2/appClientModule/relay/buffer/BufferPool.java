@@ -0,0 +1,168 @@
+package relay.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Slab allocator of direct buffers for the relay frames and the destination writes.
+ * <p>
+ * Buffers come in a few fixed size classes. Each class carves 1 MB direct slabs into buffers of
+ * its size and keeps the released ones on a free stack, so steady state forwarding reuses the
+ * same memory instead of allocating. Once a class reaches its share of the pool limit, requests
+ * that find the stack empty get a one-off buffer that is left to the garbage collector. The 64 KB
+ * class has a limit of its own, sized for the sessions that read full frames.
+ */
+public final class BufferPool {
+
+    private static final int[] SIZE_CLASSES = { 1024, 4 * 1024, 16 * 1024, 64 * 1024 };
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASSES.length];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder unpooledInUse = new LongAdder();
+
+    /**
+     * @param maxPooledBytes - the direct memory the pool may keep, split evenly between the size classes
+     */
+    public BufferPool(long maxPooledBytes) {
+        this(maxPooledBytes * (SIZE_CLASSES.length - 1) / SIZE_CLASSES.length, maxPooledBytes / SIZE_CLASSES.length);
+    }
+
+    /**
+     * @param maxPooledBytes - the direct memory the pool may keep in buffers smaller than a frame,
+     *                         split evenly between their size classes
+     * @param maxFrameBytes - the direct memory the pool may keep in 64 KB buffers, which full frame
+     *                        reads of every bulk session hold up to its credit window of
+     */
+    public BufferPool(long maxPooledBytes, long maxFrameBytes) {
+        int last = SIZE_CLASSES.length - 1;
+        for (int i = 0; i < last; i++) {
+            sizeClasses[i] = new SizeClass(SIZE_CLASSES[i], maxPooledBytes / last);
+        }
+        sizeClasses[last] = new SizeClass(SIZE_CLASSES[last], maxFrameBytes);
+    }
+
+    /**
+     * Hands out a buffer with its position at 0 and its limit at the requested size.
+     *
+     * @param size - the bytes needed, up to 64 KB is pooled
+     * @return a buffer with a reference count of 1
+     */
+    public PooledBuffer allocate(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.bufferSize) {
+                return sizeClass.allocate(size);
+            }
+        }
+
+        return allocateUnpooled(size);
+    }
+
+    // Allocations served from the free stacks
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // Allocations that needed a new slab or a one-off buffer
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Buffers handed out and not released yet
+    public long getInUse() {
+        long inUse = unpooledInUse.sum();
+        for (SizeClass sizeClass : sizeClasses) {
+            inUse += sizeClass.inUse();
+        }
+        return inUse;
+    }
+
+    // Direct memory held in slabs
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " inUse=" + getInUse()
+                + " pooledBytes=" + getPooledBytes();
+    }
+
+    private PooledBuffer allocateUnpooled(int size) {
+        misses.increment();
+        unpooledInUse.increment();
+        return new PooledBuffer(ByteBuffer.allocateDirect(size), this, null).acquire(size);
+    }
+
+    void releasedUnpooled() {
+        unpooledInUse.decrement();
+    }
+
+    final class SizeClass {
+        private final int bufferSize;
+        private final long maxBytes;
+
+        private PooledBuffer[] free = new PooledBuffer[SLAB_SIZE / 1024];
+        private int freeCount;
+        private long capacity; // buffers carved from slabs so far
+
+        private SizeClass(int bufferSize, long maxBytes) {
+            this.bufferSize = bufferSize;
+            this.maxBytes = maxBytes;
+        }
+
+        private PooledBuffer allocate(int size) {
+            PooledBuffer buffer = null;
+            synchronized (this) {
+                if (freeCount > 0) {
+                    buffer = free[--freeCount];
+                    free[freeCount] = null;
+                    hits.increment();
+                } else if ((capacity + 1) * bufferSize <= maxBytes) {
+                    buffer = addSlab();
+                }
+            }
+
+            if (buffer == null) {
+                // the class is at its limit and everything is in use
+                return allocateUnpooled(size);
+            }
+            return buffer.acquire(size);
+        }
+
+        // Carves a new slab into buffers, keeps all but the one returned on the free stack
+        private PooledBuffer addSlab() {
+            misses.increment();
+
+            int count = (int) Math.max(1, Math.min(SLAB_SIZE / bufferSize, maxBytes / bufferSize - capacity));
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+            pooledBytes.addAndGet((long) count * bufferSize);
+            capacity += count;
+
+            if (free.length < capacity) {
+                PooledBuffer[] resized = new PooledBuffer[(int) capacity];
+                System.arraycopy(free, 0, resized, 0, freeCount);
+                free = resized;
+            }
+
+            for (int i = 1; i < count; i++) {
+                free[freeCount++] = new PooledBuffer(slab.slice(i * bufferSize, bufferSize), BufferPool.this, this);
+            }
+            return new PooledBuffer(slab.slice(0, bufferSize), BufferPool.this, this);
+        }
+
+        void recycle(PooledBuffer buffer) {
+            synchronized (this) {
+                free[freeCount++] = buffer;
+            }
+        }
+
+        private synchronized long inUse() {
+            return capacity - freeCount;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package relay.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A direct buffer handed out by {@link BufferPool}. It goes back to the pool when its reference
+ * count drops to zero, after which neither the holder nor the {@link ByteBuffer} may be used.
+ */
+public final class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private final BufferPool.SizeClass sizeClass; // null for buffers allocated outside of the slabs
+    private final AtomicInteger references = new AtomicInteger();
+    private long timestamp;
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, BufferPool.SizeClass sizeClass) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+    }
+
+    public ByteBuffer buffer() {
+        return this.buffer;
+    }
+
+    // When the holder received the data, used to measure how long it waits in the queues
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            if (sizeClass != null) {
+                sizeClass.recycle(this);
+            } else {
+                pool.releasedUnpooled();
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+    }
+
+    // Prepares the buffer for a new holder
+    PooledBuffer acquire(int size) {
+        references.set(1);
+        buffer.clear().limit(size);
+        return this;
+    }
+}
@@ -0,0 +1,198 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Happy Eyeballs connection racing as described at
+ * <a href="https://datatracker.ietf.org/doc/html/rfc8305#section-5">https://datatracker.ietf.org/doc/html/rfc8305</a>,
+ * section 5. Connection attempts to the addresses of a destination are started one after the other,
+ * spaced by the connection attempt delay or as soon as the previous attempts failed. The first
+ * attempt that completes wins and the others are cancelled.
+ * <p>
+ * Every attempt is registered on the reactor's selector with the session's context attached and
+ * the attempt delay runs on the reactor's {@link TimerWheel}, the race is only touched from the
+ * reactor thread.
+ */
+public class ConnectRace {
+
+    private final ConnectionContext context;
+    private final InetSocketAddress[] candidates;
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final long attemptDelayNanos;
+    private final Runnable attemptDue;
+
+    private final List<SelectionKey> attempts = new ArrayList<>();
+    private int nextCandidate;
+    private TimerWheel.Timeout attemptTimer;
+    private IOException lastFailure;
+
+    /**
+     * @param attemptDue - run by the timer wheel when the next attempt should start, expected to
+     *        call {@link #nextAttempt()}
+     */
+    public ConnectRace(ConnectionContext context,
+                       InetSocketAddress[] candidates,
+                       Selector selector,
+                       TimerWheel timers,
+                       long attemptDelayNanos,
+                       Runnable attemptDue) {
+        this.context = context;
+        this.candidates = candidates;
+        this.selector = selector;
+        this.timers = timers;
+        this.attemptDelayNanos = attemptDelayNanos;
+        this.attemptDue = attemptDue;
+    }
+
+    /**
+     * Orders the addresses of a destination by alternating the address families, starting with the
+     * family of the first address, as recommended in section 4 of RFC 8305.
+     */
+    public static InetSocketAddress[] interleave(InetAddress[] addresses, int port) {
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        boolean preferIPv6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == preferIPv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        InetSocketAddress[] candidates = new InetSocketAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                candidates[index++] = new InetSocketAddress(preferred.get(i), port);
+            }
+            if (i < other.size()) {
+                candidates[index++] = new InetSocketAddress(other.get(i), port);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Starts the first attempt.
+     *
+     * @return the key of an attempt that connected immediately, otherwise null
+     * @throws IOException - no attempt could be started
+     */
+    public SelectionKey start() throws IOException {
+        return launchNext();
+    }
+
+    /**
+     * Handles an attempt becoming connectable.
+     *
+     * @return the key of the winning attempt, or null while the race goes on
+     * @throws IOException - every address failed
+     */
+    public SelectionKey onConnectable(SelectionKey key) throws IOException {
+        try {
+            if (((SocketChannel) key.channel()).finishConnect()) {
+                attempts.remove(key);
+                cancel();
+                return key;
+            }
+            return null;
+        } catch (IOException ioe) {
+            lastFailure = ioe;
+            attempts.remove(key);
+            closeAttempt(key);
+        }
+
+        // a failed attempt lets the next one start right away
+        if (attempts.isEmpty()) {
+            return launchNext();
+        }
+        return null;
+    }
+
+    /**
+     * Starts the next attempt once the connection attempt delay has passed.
+     *
+     * @return the key of an attempt that connected immediately, otherwise null
+     * @throws IOException - every address failed
+     */
+    public SelectionKey nextAttempt() throws IOException {
+        if (hasPendingCandidates()) {
+            return launchNext();
+        }
+        return null;
+    }
+
+    public boolean hasPendingCandidates() {
+        return nextCandidate < candidates.length;
+    }
+
+    // Closes every attempt still in flight
+    public void cancel() {
+        cancelAttemptTimer();
+        for (SelectionKey attempt : attempts) {
+            closeAttempt(attempt);
+        }
+        attempts.clear();
+        nextCandidate = candidates.length;
+    }
+
+    private SelectionKey launchNext() throws IOException {
+        cancelAttemptTimer();
+        while (hasPendingCandidates()) {
+            InetSocketAddress candidate = candidates[nextCandidate++];
+
+            SocketChannel socketChannel = null;
+            try {
+                socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(false);
+                boolean connected = socketChannel.connect(candidate);
+                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_CONNECT, context);
+                if (connected) {
+                    cancel();
+                    return key;
+                }
+                attempts.add(key);
+                if (hasPendingCandidates()) {
+                    attemptTimer = timers.schedule(attemptDelayNanos, attemptDue);
+                }
+                return null;
+            } catch (IOException ioe) {
+                lastFailure = ioe;
+                if (socketChannel != null) {
+                    socketChannel.close();
+                }
+            }
+        }
+
+        if (attempts.isEmpty()) {
+            throw lastFailure != null ? lastFailure : new IOException("no address to connect to");
+        }
+        return null;
+    }
+
+    private void cancelAttemptTimer() {
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
+        }
+    }
+
+    private static void closeAttempt(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
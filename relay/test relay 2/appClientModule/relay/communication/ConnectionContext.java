@@ -1,25 +1,338 @@
 package relay.communication;
 
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import relay.RelayConfig;
+import relay.buffer.PooledBuffer;
+
 public class ConnectionContext {
-    private final byte[] connectBytes;
+
+    /* The lifecycle of a session. It only moves forward: a session that fails to connect goes
+    *  straight to CLOSED, one that ends normally goes through HALF_CLOSED while its last data is
+    *  written to the destination */
+    public enum State {
+        // the connect request is not answered yet
+        CONNECTING,
+        // data flows both ways
+        OPEN,
+        // the client or the destination has finished, the data queued for the destination is still written
+        HALF_CLOSED,
+        // the destination channel is closed and the session's buffers are released
+        CLOSED
+    }
+
+    // Upper bound of the data queued for the destination server, a session going over it is dropped
+    public static final int MAX_PENDING_WRITE_BYTES = 256 * 1024;
+
+    private byte[] connectBytes;
     private final byte[] idBytes;
+    private final long sessionID;
     private final String clientID;
+    private final UplinkScheduler uplink;   // of the link the session arrived on, which carries its replies
+    private final long connectStartedAt = System.nanoTime();
+
+    /* Data received from the relay that still has to be written to the destination server.
+    *  Filled by the relay reader thread and drained by the selector thread */
+    private final Queue<PooledBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWriteBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
 
-    public ConnectionContext(byte[] connectBytes, byte[] idBytes, String clientID) {
+    /* Data read from the destination server that still has to be sent to the relay, see
+    *  UplinkScheduler. Filled by the thread reading the destination and drained by the scheduler */
+    private final Queue<PooledBuffer> uplinkQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean uplinkActive = new AtomicBoolean();
+    private final AtomicInteger uplinkCredits = new AtomicInteger(RelayConfig.UPLINK_CREDIT_BYTES);
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+    private int uplinkDeficit;  // only touched by the thread draining the scheduler
+
+    private volatile SelectionKey selectionKey;
+    private VirtualSession virtualSession;  // set before the session is published, with relay.engine=virtual
+    private UdpAssociation udpAssociation;  // set before the session is published, for a UDP ASSOCIATE request
+    // only touched by the reactor thread
+    private ConnectRace connectRace;
+    private final ReadSizer readSizer = new ReadSizer();
+    private TimerWheel.Timeout timer;   // connect, idle or linger timeout, depending on the session state
+    private long lastActivity;
+    private boolean lingering;
+    private volatile boolean closeRequested;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CONNECTING);
+    private final AtomicBoolean relayClosed = new AtomicBoolean();
+
+    public ConnectionContext(byte[] connectBytes, byte[] idBytes, long sessionID, String clientID, UplinkScheduler uplink) {
         this.connectBytes = connectBytes;
         this.idBytes = idBytes;
+        this.sessionID = sessionID;
         this.clientID = clientID;
+        this.uplink = uplink;
     }
 
     public byte[] getConnectBytes() {
         return this.connectBytes;
     }
 
+    // The connect request is only needed until it is replied to
+    public void releaseConnectBytes() {
+        this.connectBytes = null;
+    }
+
     public byte[] getIdBytes() {
         return this.idBytes;
     }
 
+    public long getSessionID() {
+        return this.sessionID;
+    }
+
     public String getClientID() {
         return clientID;
     }
-}
\ No newline at end of file
+
+    public UplinkScheduler getUplink() {
+        return this.uplink;
+    }
+
+    // When the connect request was received, the start of its connect latency
+    public long getConnectStartedAt() {
+        return this.connectStartedAt;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return this.selectionKey;
+    }
+
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    // Read size of the destination, used by the thread that reads it
+    public ReadSizer getReadSizer() {
+        return this.readSizer;
+    }
+
+    public UdpAssociation getUdpAssociation() {
+        return this.udpAssociation;
+    }
+
+    public void setUdpAssociation(UdpAssociation udpAssociation) {
+        this.udpAssociation = udpAssociation;
+    }
+
+    public VirtualSession getVirtualSession() {
+        return this.virtualSession;
+    }
+
+    public void setVirtualSession(VirtualSession virtualSession) {
+        this.virtualSession = virtualSession;
+    }
+
+    // Set while the addresses of the destination are raced, the selection key is set by the winner
+    public ConnectRace getConnectRace() {
+        return this.connectRace;
+    }
+
+    public void setConnectRace(ConnectRace connectRace) {
+        this.connectRace = connectRace;
+    }
+
+    /* Replaces the pending timeout of the session, a session only waits for one thing at a time:
+    *  its connection, some traffic or the end of its linger */
+    public void setTimer(TimerWheel.Timeout timer) {
+        cancelTimer();
+        this.timer = timer;
+    }
+
+    public void cancelTimer() {
+        if (this.timer != null) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+    }
+
+    // Last time data went through the session, checked when its idle timeout expires
+    public long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    public void touch(long now) {
+        this.lastActivity = now;
+    }
+
+    // Set once a closed session keeps its channel open to write the data still queued
+    public boolean isLingering() {
+        return this.lingering;
+    }
+
+    public void setLingering(boolean lingering) {
+        this.lingering = lingering;
+    }
+
+    /**
+     * Queues data for the destination server. The context takes over the buffer when it is queued.
+     *
+     * @param data - the data to be written to the destination server
+     * @return false if the data would exceed {@link #MAX_PENDING_WRITE_BYTES}, or
+     *         {@link RelayConfig#EARLY_DATA_BYTES} while the destination is connecting, in which
+     *         case it is not queued
+     */
+    public boolean offerWrite(PooledBuffer data) {
+        int size = data.buffer().remaining();
+        int limit = getState() == State.CONNECTING ? RelayConfig.EARLY_DATA_BYTES : MAX_PENDING_WRITE_BYTES;
+        if (pendingWriteBytes.addAndGet(size) > limit) {
+            pendingWriteBytes.addAndGet(-size);
+            return false;
+        }
+        pendingWrites.add(data);
+        return true;
+    }
+
+    // The oldest queued data, which may already be partially written
+    public PooledBuffer peekWrite() {
+        return pendingWrites.peek();
+    }
+
+    // Drops the oldest queued data once it has been fully written
+    public void completeWrite() {
+        PooledBuffer data = pendingWrites.poll();
+        if (data != null) {
+            data.release();
+        }
+    }
+
+    /* Drops the data that will never be written. Called by the session's reactor or virtual thread,
+    *  or by the threads failing a session that has neither yet; every buffer is polled once */
+    public void releasePendingWrites() {
+        PooledBuffer data;
+        while ((data = pendingWrites.poll()) != null) {
+            pendingWriteBytes.addAndGet(-data.buffer().remaining());
+            data.release();
+        }
+    }
+
+    // Accounts for the bytes that reached the destination server
+    public void releasePendingBytes(int written) {
+        pendingWriteBytes.addAndGet(-written);
+    }
+
+    public int getPendingWriteBytes() {
+        return pendingWriteBytes.get();
+    }
+
+    // Queues data for the relay, see UplinkScheduler#send
+    public void offerUplink(PooledBuffer data) {
+        uplinkQueue.add(data);
+    }
+
+    public PooledBuffer peekUplink() {
+        return uplinkQueue.peek();
+    }
+
+    public PooledBuffer pollUplink() {
+        return uplinkQueue.poll();
+    }
+
+    // Returns true only for the caller that has to add the session to the scheduler's turns
+    public boolean markUplinkActive() {
+        return uplinkActive.compareAndSet(false, true);
+    }
+
+    public void clearUplinkActive() {
+        uplinkActive.set(false);
+    }
+
+    public int getUplinkDeficit() {
+        return this.uplinkDeficit;
+    }
+
+    public void setUplinkDeficit(int uplinkDeficit) {
+        this.uplinkDeficit = uplinkDeficit;
+    }
+
+    /* The credits a paused read waits for: a full frame, or half the window when it is smaller than
+    *  two frames, so a session that ran out does not resume with reads of a few bytes */
+    public static final int RESUME_CREDITS = Math.min(FrameEncoder.MAX_PAYLOAD_SIZE, RelayConfig.UPLINK_CREDIT_BYTES / 2);
+
+    // Send credits left, the destination is only read while there are enough for the next read
+    public int getUplinkCredits() {
+        return uplinkCredits.get();
+    }
+
+    public void consumeUplinkCredits(int bytes) {
+        uplinkCredits.addAndGet(-bytes);
+    }
+
+    // Whether the next read of readSize bytes may start, it is cut to the credits left
+    public boolean hasReadCredits(int readSize) {
+        return uplinkCredits.get() >= Math.min(readSize, RESUME_CREDITS);
+    }
+
+    /**
+     * Gives back the credits of data the relay link has taken.
+     *
+     * @return true if the read of the destination was paused and must be resumed by the caller
+     */
+    public boolean returnUplinkCredits(int bytes) {
+        return uplinkCredits.addAndGet(bytes) >= RESUME_CREDITS && readPaused.compareAndSet(true, false);
+    }
+
+    /**
+     * Marks the read of the destination paused, after the reader stopped reading.
+     *
+     * @return false if {@link #RESUME_CREDITS} came back in the meantime, the reader then goes on reading
+     */
+    public boolean pauseRead() {
+        readPaused.set(true);
+        return !(uplinkCredits.get() >= RESUME_CREDITS && readPaused.compareAndSet(true, false));
+    }
+
+    public boolean isReadPaused() {
+        return readPaused.get();
+    }
+
+    // Returns true only for the caller that has to hand the context over to the selector thread
+    public boolean markFlushScheduled() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    public void clearFlushScheduled() {
+        flushScheduled.set(false);
+    }
+
+    public State getState() {
+        return this.state.get();
+    }
+
+    // CONNECTING to OPEN, once the connect success reply is sent
+    public boolean open() {
+        return state.compareAndSet(State.CONNECTING, State.OPEN);
+    }
+
+    // OPEN to HALF_CLOSED, returns false if the other side already finished the session
+    public boolean halfClose() {
+        return state.compareAndSet(State.OPEN, State.HALF_CLOSED);
+    }
+
+    // Any state to CLOSED, returns true only for the caller that closed the session
+    public boolean markClosed() {
+        return state.getAndSet(State.CLOSED) != State.CLOSED;
+    }
+
+    /* The relay side of the session is closed, by a close frame from the relay or by one sent to
+    *  it. Returns true only the first time, a session gets at most one close frame each way */
+    public boolean markRelayClosed() {
+        return relayClosed.compareAndSet(false, true);
+    }
+
+    // Asks the reactor thread to close the destination channel, see Reactor#scheduleClose
+    public void requestClose() {
+        this.closeRequested = true;
+    }
+
+    public boolean isCloseRequested() {
+        return this.closeRequested;
+    }
+}
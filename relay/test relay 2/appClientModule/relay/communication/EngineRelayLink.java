@@ -0,0 +1,361 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import relay.RelayConfig;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+
+/**
+ * Relay link over a non-blocking {@link SocketChannel} wrapped in an {@link SSLEngine}. The link
+ * is registered on the selector of a reactor next to its destination channels, so the TLS
+ * handshake, the relay reads and the relay writes run on that reactor's thread. The other reactors
+ * send their frames through the same engine, the link serializes them.
+ * <p>
+ * Small frames are coalesced in plain text and encrypted together once the batch reaches
+ * {@link RelayConfig#UPLINK_FLUSH_BYTES} or its first frame has waited
+ * {@link RelayConfig#UPLINK_FLUSH_MICROS}, so they share TLS records instead of paying the record
+ * overhead each. The deadline is kept by the reactor that owns the link, which checks it on every
+ * turn of its selector loop and bounds its select timeout by it (see {@link #flushIfDue(long)}).
+ */
+public final class EngineRelayLink implements RelayLink {
+
+    private static final ByteBuffer[] NO_DATA = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final FrameEncoder frameEncoder = new FrameEncoder();
+
+    private final ByteBuffer netIn;   // encrypted bytes read from the relay
+    private final ByteBuffer appIn;   // decrypted bytes holding frames not dispatched yet
+    private ByteBuffer netOut;        // encrypted bytes not yet written to the relay
+
+    // Frames waiting to be encrypted together
+    private final ByteBuffer batch = ByteBuffer.allocate(RelayConfig.UPLINK_FLUSH_BYTES
+            + FrameEncoder.HEADER_SIZE + FrameEncoder.MAX_PAYLOAD_SIZE);
+    private final ByteBuffer[] batchSources = { batch };
+    private final FrameTimes frameTimes = new FrameTimes(RelayMetrics.UPLINK_FLUSH_LATENCY);
+    private long flushDeadline;
+    private IOException flushFailure;
+
+    private Reactor reactor;
+    private SelectionKey key;
+    private FrameDecoder decoder;
+    private Runnable capacityListener;
+    private boolean handshakeCompleted;
+    private volatile boolean compressed;
+    private long handshakeStartedAt;
+
+    public EngineRelayLink(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = ByteBuffer.allocateDirect(packetSize);
+        this.netOut = ByteBuffer.allocateDirect(packetSize);
+        // room for the largest partial frame plus one more decrypted record
+        this.appIn = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + FrameEncoder.MAX_PAYLOAD_SIZE + applicationSize);
+    }
+
+    /**
+     * Registers the link on the reactor's selector and starts the TLS handshake. Called by the
+     * reactor's thread.
+     *
+     * @param reactor - the reactor that will own the link
+     * @param decoder - decodes the frames received from the relay
+     */
+    synchronized void register(Reactor reactor, FrameDecoder decoder) throws IOException {
+        this.reactor = reactor;
+        this.decoder = decoder;
+        this.key = channel.register(reactor.getSelector(), SelectionKey.OP_READ, this);
+        handshakeStartedAt = System.nanoTime();
+        engine.beginHandshake();
+        progressHandshake(engine.getHandshakeStatus());
+    }
+
+    // Called by the selector thread when the relay channel is readable
+    public synchronized void handleRead() throws IOException {
+        int bytesRead = channel.read(netIn);
+        if (bytesRead == -1) {
+            throw new IOException("relay closed the connection");
+        }
+
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // the rest of the TLS record has not arrived yet
+                        return;
+                    case BUFFER_OVERFLOW:
+                        throw new IOException("relay frame exceeds the link buffer");
+                    case CLOSED:
+                        throw new IOException("relay closed the TLS session");
+                    default:
+                        break;
+                }
+
+                HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+                progressHandshake(handshakeStatus);
+                dispatchFrames();
+
+                if (result.bytesConsumed() == 0 && handshakeStatus != HandshakeStatus.NEED_TASK
+                        && handshakeStatus != HandshakeStatus.NEED_WRAP) {
+                    return;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // Called by the selector thread when the relay channel can take the buffered records
+    public void handleWrite() throws IOException {
+        synchronized (this) {
+            flush();
+        }
+        if (capacityListener != null && hasCapacity()) {
+            capacityListener.run();
+        }
+    }
+
+    // The records the relay has not taken yet are bounded by UPLINK_LINK_BUFFER_BYTES
+    @Override
+    public synchronized boolean hasCapacity() {
+        return netOut.position() < RelayConfig.UPLINK_LINK_BUFFER_BYTES;
+    }
+
+    @Override
+    public void setCapacityListener(Runnable listener) {
+        this.capacityListener = listener;
+    }
+
+    // Set by the handshake, which completes before the relay opens any session
+    @Override
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    @Override
+    public synchronized void sendFrame(byte[] idBytes, ByteBuffer payload) throws IOException {
+        if (flushFailure != null) {
+            throw flushFailure;
+        }
+
+        long handedAt = System.nanoTime();
+        boolean firstFrame = batch.position() == 0;
+        if (firstFrame && FrameEncoder.HEADER_SIZE + payload.remaining() >= RelayConfig.UPLINK_FLUSH_BYTES) {
+            // big enough on its own, the header and the payload are encrypted straight from their buffers
+            wrap(frameEncoder.gather(idBytes, payload));
+            flush();
+            RelayMetrics.UPLINK_FLUSH_LATENCY.record(System.nanoTime() - handedAt);
+            return;
+        }
+
+        FrameEncoder.encode(idBytes, payload, batch);
+        frameTimes.add(handedAt);
+
+        if (batch.position() >= RelayConfig.UPLINK_FLUSH_BYTES || RelayConfig.UPLINK_FLUSH_MICROS == 0) {
+            flushBatch();
+        } else if (firstFrame) {
+            flushDeadline = System.nanoTime() + RelayConfig.UPLINK_FLUSH_MICROS * 1000L;
+            // a reactor blocked in select has to shorten its timeout to the deadline
+            reactor.wakeup();
+        }
+    }
+
+    /**
+     * Flushes the coalesced frames if their deadline has passed. Called by the owning reactor on
+     * every turn of its selector loop.
+     *
+     * @param now - the current {@link System#nanoTime()}
+     * @return the nanoseconds left until the pending frames are due, or -1 if nothing is pending
+     */
+    synchronized long flushIfDue(long now) {
+        if (batch.position() == 0) {
+            return -1;
+        }
+
+        long remaining = flushDeadline - now;
+        if (remaining > 0) {
+            return remaining;
+        }
+
+        try {
+            flushBatch();
+        } catch (IOException ioe) {
+            // reported to the next sender
+            flushFailure = ioe;
+        }
+        return -1;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (batch.position() > 0) {
+                flushBatch();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        engine.closeOutbound();
+        try {
+            wrap(NO_DATA);
+            flush();
+        } catch (IOException e) {
+            // ignore
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        batch.flip();
+        try {
+            wrap(batchSources);
+        } finally {
+            batch.clear();
+        }
+        try {
+            flush();
+            frameTimes.recordFlushed(System.nanoTime());
+        } finally {
+            frameTimes.clear();
+        }
+    }
+
+    private void dispatchFrames() {
+        appIn.flip();
+        try {
+            decoder.decode(appIn);
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    // Encrypts the buffers into netOut, which grows when the relay falls behind
+    private void wrap(ByteBuffer[] sources) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(sources, netOut);
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    enlargeNetOut();
+                    continue;
+                case CLOSED:
+                    if (result.bytesProduced() == 0) {
+                        throw new SSLException("relay link TLS session is closed");
+                    }
+                    return;
+                default:
+                    break;
+            }
+
+            HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+            if (handshakeStatus != HandshakeStatus.NOT_HANDSHAKING) {
+                progressHandshake(handshakeStatus);
+            }
+
+            if (!hasRemaining(sources)) {
+                return;
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                throw new SSLException("relay link handshake still in progress");
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+
+        // whatever the socket could not take is written on OP_WRITE
+        if (!key.isValid()) {
+            return;
+        }
+        if (netOut.position() > 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Runs the handshake steps that do not need more data from the relay
+    private void progressHandshake(HandshakeStatus handshakeStatus) throws IOException {
+        while (true) {
+            switch (handshakeStatus) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    handshakeStatus = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result;
+                    do {
+                        result = engine.wrap(NO_DATA, netOut);
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            enlargeNetOut();
+                        }
+                    } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+                    flush();
+                    handshakeStatus = result.getHandshakeStatus();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    if (!handshakeCompleted) {
+                        handshakeCompleted = true;
+                        compressed = FrameCompressor.ALPN_DEFLATE.equals(engine.getApplicationProtocol());
+                        Log.info(null, null, "Relay link handshake completed in {} ms: {}",
+                                (System.nanoTime() - handshakeStartedAt) / 1_000_000L,
+                                engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite()
+                                        + (compressed ? " deflate" : ""));
+                    }
+                    return;
+                default:
+                    // NEED_UNWRAP, wait for the relay
+                    return;
+            }
+        }
+    }
+
+    private void enlargeNetOut() {
+        ByteBuffer enlarged = ByteBuffer.allocateDirect(netOut.capacity() * 2);
+        netOut.flip();
+        enlarged.put(netOut);
+        netOut = enlarged;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
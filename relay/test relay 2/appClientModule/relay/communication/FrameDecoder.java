@@ -0,0 +1,61 @@
+package relay.communication;
+
+import java.nio.ByteBuffer;
+
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+
+/**
+ * Decodes the frames received from the relay out of a buffer that may hold any number of
+ * complete frames followed by a partial one. Payloads are copied into pooled buffers and the
+ * session id array is reused, so decoding does not allocate.
+ */
+public final class FrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * @param idBytes - the 6 bytes session id, only valid for the duration of the call
+         * @param payload - the frame data, owned (and released) by the listener, null for a close frame
+         */
+        void onFrame(byte[] idBytes, PooledBuffer payload);
+    }
+
+    private final BufferPool bufferPool;
+    private final FrameListener listener;
+    private final byte[] idBytes = new byte[FrameEncoder.ID_SIZE];
+
+    public FrameDecoder(BufferPool bufferPool, FrameListener listener) {
+        this.bufferPool = bufferPool;
+        this.listener = listener;
+    }
+
+    /**
+     * Dispatches every complete frame in the buffer. The buffer is left positioned at the start
+     * of the first incomplete frame, ready to be compacted.
+     *
+     * @param buffer - the received data, in read mode
+     */
+    public void decode(ByteBuffer buffer) {
+        while (buffer.remaining() >= FrameEncoder.HEADER_SIZE) {
+            int start = buffer.position();
+            int payloadLength = ((buffer.get(start + FrameEncoder.ID_SIZE) & 0xFF) << 8) |
+                    (buffer.get(start + FrameEncoder.ID_SIZE + 1) & 0xFF);
+
+            if (buffer.remaining() < FrameEncoder.HEADER_SIZE + payloadLength) {
+                return;
+            }
+
+            buffer.get(idBytes);
+            buffer.position(start + FrameEncoder.HEADER_SIZE);
+
+            PooledBuffer payload = null;
+            if (payloadLength > 0) {
+                payload = bufferPool.allocate(payloadLength);
+                payload.buffer().put(0, buffer, buffer.position(), payloadLength);
+                buffer.position(buffer.position() + payloadLength);
+            }
+
+            listener.onFrame(idBytes, payload);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package relay.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the frames sent back to the relay: 6 bytes of session id, 2 bytes of payload length
+ * (big-endian) and the payload. The gathering encoder reuses its buffers, so it must be owned by
+ * a single thread.
+ */
+public final class FrameEncoder {
+
+    public static final int ID_SIZE = 6;
+    public static final int HEADER_SIZE = ID_SIZE + 2;
+    public static final int MAX_PAYLOAD_SIZE = 0xFFFF;
+
+    // Header and payload of a gathered frame
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer[] frameBuffers = new ByteBuffer[2];
+
+    /**
+     * Writes the header and copies the payload at the position of the destination buffer, which
+     * is how the relay links coalesce several frames into one write.
+     *
+     * @param idBytes - the 6 bytes session id
+     * @param payload - the data to be sent, at most {@link #MAX_PAYLOAD_SIZE} bytes, consumed
+     * @param destination - the buffer the frame is appended to
+     * @return the size of the encoded frame
+     */
+    public static int encode(byte[] idBytes, ByteBuffer payload, ByteBuffer destination) {
+        int length = payload.remaining();
+
+        destination.put(idBytes, 0, ID_SIZE);
+        destination.put((byte) (length >> 8));  // High byte of length
+        destination.put((byte) (length));       // Low byte of length
+        destination.put(payload);
+
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Writes the header and copies the payload into an array, for the links that encode the
+     * frames into a ring.
+     *
+     * @param idBytes - the 6 bytes session id
+     * @param payload - the data to be sent, at most {@link #MAX_PAYLOAD_SIZE} bytes, consumed
+     * @param destination - the array the frame is written to
+     * @param offset - where the frame starts in the array
+     * @return the size of the encoded frame
+     */
+    public static int encode(byte[] idBytes, ByteBuffer payload, byte[] destination, int offset) {
+        int length = payload.remaining();
+
+        System.arraycopy(idBytes, 0, destination, offset, ID_SIZE);
+        destination[offset + ID_SIZE] = (byte) (length >> 8);
+        destination[offset + ID_SIZE + 1] = (byte) length;
+        payload.get(destination, offset + HEADER_SIZE, length);
+
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Writes the header into the reusable header buffer and returns it together with the payload,
+     * to be sent with a single gathering write without copying the payload.
+     *
+     * @param idBytes - the 6 bytes session id
+     * @param payload - the data to be sent, at most {@link #MAX_PAYLOAD_SIZE} bytes
+     * @return the header and payload buffers, valid until the next call
+     */
+    public ByteBuffer[] gather(byte[] idBytes, ByteBuffer payload) {
+        header.clear();
+        header.put(idBytes, 0, ID_SIZE);
+        header.putShort((short) payload.remaining());
+        header.flip();
+
+        frameBuffers[0] = header;
+        frameBuffers[1] = payload;
+        return frameBuffers;
+    }
+}
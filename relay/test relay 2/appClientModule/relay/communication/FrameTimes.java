@@ -0,0 +1,40 @@
+package relay.communication;
+
+import java.util.Arrays;
+
+import relay.metrics.Histogram;
+
+/**
+ * Times at which the frames of an uplink batch were handed to the relay link, recorded as one
+ * latency per frame once the batch is written. Guarded by the link that owns it.
+ */
+public final class FrameTimes {
+
+    private final Histogram histogram;
+    private long[] times = new long[64];
+    private int count;
+
+    public FrameTimes(Histogram histogram) {
+        this.histogram = histogram;
+    }
+
+    public void add(long time) {
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+        }
+        times[count++] = time;
+    }
+
+    // Records how long every frame of the batch waited, the batch was just written
+    public void recordFlushed(long now) {
+        for (int i = 0; i < count; i++) {
+            histogram.record(now - times[i]);
+        }
+        count = 0;
+    }
+
+    // Forgets the batch, it was not written
+    public void clear() {
+        count = 0;
+    }
+}
@@ -0,0 +1,708 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import relay.RelayConfig;
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+import relay.exception.DestinationConnectException;
+import relay.exception.DestinationIOException;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+import relay.protocol.ReplyCode;
+
+/**
+ * A selector thread that owns a share of the destination channels. Sessions are assigned to a
+ * reactor by their id (see {@link RelayCommunicationHandler#reactorFor(long)}), so every event of
+ * a session is handled by the same thread and its data stays in order.
+ * <p>
+ * Every reactor drives a {@link TimerWheel} from its selector loop, which enforces the connect
+ * timeout, the idle timeout and the close linger of its sessions. The datagram channels of the UDP
+ * ASSOCIATE sessions are read on the same selector (see {@link UdpAssociation}).
+ */
+public class Reactor implements Runnable {
+
+    // Selector.select(long) waits in milliseconds
+    private static final long SELECT_RESOLUTION_NANOS = 1_000_000L;
+
+    private final int index;
+    private final RelayCommunicationHandler handler;
+    private final BufferPool bufferPool;
+
+    private final Queue<RegistrationRequest> registrationQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<ConnectionContext> flushQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<ConnectionContext> resumeQueue = new ConcurrentLinkedQueue<>();
+    // relay link and datagram channel registrations, run on this reactor's thread
+    private final Queue<Runnable> registrationTasks = new ConcurrentLinkedQueue<>();
+    // the engine links registered on this reactor, whose flush deadlines it keeps
+    private final List<EngineRelayLink> relayLinks = new ArrayList<>();
+    private final TimerWheel timers = new TimerWheel(RelayConfig.TIMER_TICK_MS * 1_000_000L, 512);
+    private final Selector selector;
+    // every datagram of this reactor's UDP sessions is received here before it is framed
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(UdpAssociation.MAX_DATAGRAM_SIZE);
+    private volatile Thread thread;
+    private long clock;    // time the last select returned, stamps the session activity
+
+    public Reactor(int index, RelayCommunicationHandler handler, BufferPool bufferPool) throws IOException {
+        this.index = index;
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.selector = Selector.open();
+    }
+
+    public Selector getSelector() {
+        return this.selector;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "reactor-" + index);
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        writeToRelay();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Connects a new session, inline when called from this reactor's thread
+    public void register(RegistrationRequest registrationRequest) {
+        if (inEventLoop()) {
+            registerDestination(registrationRequest);
+        } else {
+            registrationQueue.add(registrationRequest);
+            selector.wakeup();
+        }
+    }
+
+    // Hands the session over to this reactor's thread, which writes its queued data
+    public void scheduleFlush(ConnectionContext context) {
+        if (inEventLoop()) {
+            processFlush(context);
+        } else if (context.markFlushScheduled()) {
+            flushQueue.add(context);
+            selector.wakeup();
+        }
+    }
+
+    /* Closes the destination channel on this reactor's thread, which is the only one touching the
+    *  session's buffers, so they can be released safely */
+    public void scheduleClose(ConnectionContext context) {
+        context.requestClose();
+        scheduleFlush(context);
+    }
+
+    // Reads the destination again once the session got send credits back
+    public void scheduleResume(ConnectionContext context) {
+        if (inEventLoop()) {
+            resumeRead(context);
+        } else {
+            resumeQueue.add(context);
+            selector.wakeup();
+        }
+    }
+
+    // Wakes the selector up from another thread, so the loop takes a new flush deadline into account
+    void wakeup() {
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Registers a relay link on this reactor's selector, from its own thread
+    public void registerRelayLink(EngineRelayLink relayLink, FrameDecoder decoder) {
+        registrationTasks.add(() -> {
+            try {
+                relayLinks.add(relayLink);
+                relayLink.register(this, decoder);
+            } catch (IOException e) {
+                handler.onRelayLinkFailure(relayLink, e.getMessage());
+            }
+        });
+        selector.wakeup();
+    }
+
+    // Reads the datagram channel of a UDP session from this reactor's thread until it is closed
+    public void registerAssociation(UdpAssociation association) {
+        registrationTasks.add(() -> {
+            if (association.isClosed()) {
+                return;
+            }
+            try {
+                association.getChannel().register(selector, SelectionKey.OP_READ, association);
+            } catch (IOException e) {
+                Log.error(association.getContext().getClientID(), "REPLY-ERROR", "failed to register the datagram channel: {}", e.getMessage());
+                association.close();
+                handler.sendBackClose(association.getContext());
+                return;
+            }
+            timers.schedule(RelayConfig.UDP_IDLE_TIMEOUT_SECONDS * 1_000_000_000L, () -> onAssociationTimeout(association));
+        });
+        selector.wakeup();
+    }
+
+    // The idle timeout of a UDP session, pushed back while it has traffic
+    private void onAssociationTimeout(UdpAssociation association) {
+        long remaining = association.expireIfIdle();
+        if (remaining > 0) {
+            timers.schedule(remaining, () -> onAssociationTimeout(association));
+        }
+    }
+
+    // Frames the datagrams waiting on a UDP session's channel, up to READ_BUDGET of them
+    private void handleDatagramRead(SelectionKey key, UdpAssociation association) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < RelayConfig.READ_BUDGET && association.receive(datagramBuffer); i++) {
+                // the selector reports the channel again if datagrams are left
+            }
+        } catch (IOException e) {
+            if (!association.isClosed()) {
+                Log.error(association.getContext().getClientID(), "REPLY-ERROR", "failed to receive a datagram: {}", e.getMessage());
+                association.close();
+                handler.sendBackClose(association.getContext());
+            }
+        }
+    }
+
+    private void resumeRead(ConnectionContext context) {
+        SelectionKey key = context.getSelectionKey();
+        // a half closed destination is not read anymore
+        if (key != null && key.isValid() && context.getState() == ConnectionContext.State.OPEN) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void processFlush(ConnectionContext context) {
+        SelectionKey key = context.getSelectionKey();
+        if (key == null) {
+            // still connecting, a closed session stops racing its addresses
+            ConnectRace race = context.getConnectRace();
+            if (race != null && context.isCloseRequested()) {
+                context.setConnectRace(null);
+                race.cancel();
+                context.cancelTimer();
+                context.releasePendingWrites();
+            } else if (race == null && context.getState() == ConnectionContext.State.CLOSED) {
+                // failed before it raced any address, its early data has nowhere to go
+                context.releasePendingWrites();
+            }
+            return;
+        }
+        if (!key.isValid()) {
+            closeDestination(key, context);
+            return;
+        }
+        if (context.isCloseRequested()) {
+            lingerClose(key, context);
+            return;
+        }
+        try {
+            flushPendingWrites(key);
+        } catch (DestinationIOException e) {
+            handler.sendBackClose(context);
+        }
+    }
+
+    /* Writes the data the client sent before the session ended, for up to LINGER_MS, then shuts
+    *  the destination down. The destination is no longer read, its replies have nowhere to go */
+    private void lingerClose(SelectionKey key, ConnectionContext context) {
+        context.halfClose();
+        if (context.peekWrite() != null && RelayConfig.LINGER_MS > 0
+                && ((SocketChannel) key.channel()).isConnected()) {
+            try {
+                flushPendingWrites(key);
+            } catch (DestinationIOException e) {
+                // closed by flushPendingWrites
+                return;
+            }
+            if (context.peekWrite() != null) {
+                if (!context.isLingering()) {
+                    context.setLingering(true);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    context.setTimer(timers.schedule(RelayConfig.LINGER_MS * 1_000_000L, () -> onSessionTimeout(context)));
+                }
+                return;
+            }
+        }
+        shutdownDestination(key, context);
+    }
+
+    /* Ends a session whose queued data is all written: the destination reads the end of the stream
+    *  right after the last byte instead of a reset, then the channel is closed */
+    private void shutdownDestination(SelectionKey key, ConnectionContext context) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.isConnected()) {
+            try {
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                // closed below all the same
+            }
+        }
+        closeDestination(key, context);
+    }
+
+    // Closes the destination channel and releases the session's buffers, the session is CLOSED
+    private void closeDestination(SelectionKey key, ConnectionContext context) {
+        context.markClosed();
+        context.cancelTimer();
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.error(context.getClientID(), "CLOSE-ERROR", "error closing socket channel: {}", e.getMessage());
+        }
+        context.releasePendingWrites();
+    }
+
+    // Opens the connection to the destination server, only called from this reactor's thread
+    private void registerDestination(RegistrationRequest registrationRequest) {
+        ConnectionContext context = registrationRequest.getContext();
+        if (context.isCloseRequested()) {
+            // the client gave up before the session got its turn
+            context.markClosed();
+            context.releasePendingWrites();
+            return;
+        }
+
+        InetSocketAddress[] candidates = registrationRequest.getCandidates();
+        if (candidates.length > 1) {
+            raceDestination(context, candidates);
+            return;
+        }
+
+        try {
+            SocketChannel socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(registrationRequest.getInetSocketAddress());
+            context.setSelectionKey(socketChannel.register(selector, SelectionKey.OP_CONNECT, context));
+            context.setTimer(timers.schedule(RelayConfig.CONNECT_TIMEOUT_MS * 1_000_000L, () -> onSessionTimeout(context)));
+        } catch (IOException e) {
+            failConnect(context, replyCodeFor(e), e.getMessage());
+        }
+    }
+
+    // Connects to the first of the destination addresses that answers, see ConnectRace
+    private void raceDestination(ConnectionContext context, InetSocketAddress[] candidates) {
+        ConnectRace race = new ConnectRace(context, candidates, selector, timers,
+                RelayConfig.CONNECT_ATTEMPT_DELAY_MS * 1_000_000L, () -> nextAttempt(context));
+        context.setConnectRace(race);
+        context.setTimer(timers.schedule(RelayConfig.CONNECT_TIMEOUT_MS * 1_000_000L, () -> onSessionTimeout(context)));
+
+        try {
+            SelectionKey winner = race.start();
+            if (winner != null) {
+                context.setConnectRace(null);
+                completeConnect(winner, context);
+            }
+        } catch (IOException e) {
+            failConnect(context, replyCodeFor(e), e.getMessage());
+        } catch (DestinationConnectException e) {
+            // the session is closed and the relay told, see completeConnect
+        }
+    }
+
+    // Starts the next staggered attempt of a race, run by the timer wheel
+    private void nextAttempt(ConnectionContext context) {
+        ConnectRace race = context.getConnectRace();
+        if (race == null) {
+            return;
+        }
+        try {
+            SelectionKey winner = race.nextAttempt();
+            if (winner != null) {
+                context.setConnectRace(null);
+                completeConnect(winner, context);
+            }
+        } catch (IOException e) {
+            failConnect(context, replyCodeFor(e), e.getMessage());
+        } catch (DestinationConnectException e) {
+            // the session is closed and the relay told, see completeConnect
+        }
+    }
+
+    // Drops a session whose destination could not be reached and replies the reason to the client
+    private void failConnect(ConnectionContext context, ReplyCode.SOCKS5 outcome, String reason) {
+        Log.error(context.getClientID(), "CONNECT-ERROR", "failed to connect to forward server: {}", reason);
+        RelayMetrics.recordConnect(outcome, System.nanoTime() - context.getConnectStartedAt());
+        ConnectRace race = context.getConnectRace();
+        if (race != null) {
+            context.setConnectRace(null);
+            race.cancel();
+        }
+        SelectionKey key = context.getSelectionKey();
+        if (key != null) {
+            closeDestination(key, context);
+        } else {
+            context.markClosed();
+            context.cancelTimer();
+            context.releasePendingWrites();
+        }
+        handler.sendBackFailure(context, outcome);
+    }
+
+    // The SOCKS 5 reply matching a failed connection attempt
+    static ReplyCode.SOCKS5 replyCodeFor(IOException e) {
+        if (e instanceof NoRouteToHostException) {
+            return ReplyCode.SOCKS5.HOST_UNREACHABLE;
+        }
+        if (e instanceof ConnectException) {
+            String message = e.getMessage();
+            return message != null && message.contains("Network is unreachable")
+                    ? ReplyCode.SOCKS5.NETWORK_UNREACHABLE
+                    : ReplyCode.SOCKS5.CONNECTION_REFUSED;
+        }
+        return ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE;
+    }
+
+    /* Runs when the pending timeout of a session expires. What it means depends on the state of the
+    *  session: it is still connecting, it finished lingering or it may have been idle for too long */
+    private void onSessionTimeout(ConnectionContext context) {
+        if (context.getState() == ConnectionContext.State.CONNECTING) {
+            failConnect(context, ReplyCode.SOCKS5.TTL_EXPIRED, "timed out after " + RelayConfig.CONNECT_TIMEOUT_MS + " ms");
+            return;
+        }
+
+        SelectionKey key = context.getSelectionKey();
+        if (context.isLingering()) {
+            Log.info(context.getClientID(), "CLOSE", "linger expired, dropping {} bytes", context.getPendingWriteBytes());
+            closeDestination(key, context);
+            return;
+        }
+
+        // the activity is only stamped, the timeout is pushed back when it expires too early
+        long idleTimeout = RelayConfig.IDLE_TIMEOUT_SECONDS * 1_000_000_000L;
+        long idle = System.nanoTime() - context.getLastActivity();
+        if (idle < idleTimeout) {
+            context.setTimer(timers.schedule(idleTimeout - idle, () -> onSessionTimeout(context)));
+            return;
+        }
+
+        Log.info(context.getClientID(), "IDLE", "closing session idle for {} s", idle / 1_000_000_000L);
+        closeDestination(key, context);
+        handler.sendBackClose(context);
+    }
+
+    /* Flushes the coalesced frames of this reactor's relay links that are due, and forgets the
+    *  links that were closed since they were replaced by a reconnected one. Frames due within a
+    *  millisecond go out at the end of the loop turn that buffered them, with the other frames of
+    *  that turn, instead of waiting for a select timeout that cannot be shorter.
+    *  Returns the nanoseconds left until the frames still pending are due, or -1 if none are */
+    private long flushRelayLinks(long now) {
+        long next = -1;
+        for (Iterator<EngineRelayLink> links = relayLinks.iterator(); links.hasNext(); ) {
+            EngineRelayLink relayLink = links.next();
+            if (!relayLink.isOpen()) {
+                links.remove();
+                continue;
+            }
+            // a deadline closer than the select resolution is flushed early rather than late
+            long remaining = relayLink.flushIfDue(now + SELECT_RESOLUTION_NANOS);
+            if (remaining >= 0 && (next < 0 || remaining < next)) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    // The select timeout in milliseconds, bounded by the next flush deadline
+    private static long selectTimeout(long timerTimeout, long flushNanos) {
+        if (flushNanos < 0) {
+            return timerTimeout;
+        }
+        long flushTimeout = Math.max(1, flushNanos / 1_000_000);
+        return timerTimeout == 0 ? flushTimeout : Math.min(timerTimeout, flushTimeout);
+    }
+
+    private void writeToRelay() {
+        long timeout = 0;
+        while (true) {
+            try {
+                selector.select(timeout); // Blocks until an event occurs or the next timer tick is due
+                clock = System.nanoTime();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.attachment() instanceof EngineRelayLink) {
+                        handler.handleRelayEvent(key);
+                        continue;
+                    }
+                    if (key.attachment() instanceof UdpAssociation association) {
+                        handleDatagramRead(key, association);
+                        continue;
+                    }
+
+                    String clientId = ((ConnectionContext) key.attachment()).getClientID();
+                    Log.debug(clientId, "SELECTOR", "next");
+
+                    if (!key.isValid()) {
+                        Log.debug(clientId, "SELECTOR", "invalid");
+                        continue;
+                    }
+
+                    if (key.isConnectable()) {
+                        Log.debug(clientId, "SELECTOR", "connectable");
+
+                        try {
+                            handleDestinationConnect(key);
+                        } catch (DestinationConnectException e) {
+                            // the session is closed and the relay told
+                        }
+                        continue;
+                    }
+
+                    if (key.isWritable()) {
+                        Log.debug(clientId, "SELECTOR", "writable");
+
+                        ConnectionContext context = (ConnectionContext) key.attachment();
+                        try {
+                            flushPendingWrites(key);
+                        } catch (DestinationIOException e) {
+                            if (!context.isCloseRequested()) {
+                                handler.sendBackClose(context);
+                            }
+                            continue;
+                        }
+                        if (context.isLingering() && context.peekWrite() == null) {
+                            shutdownDestination(key, context);
+                            continue;
+                        }
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        Log.debug(clientId, "SELECTOR", "readable");
+
+                        try {
+                            handleDestinationRead(key);
+                        } catch (DestinationIOException e) {
+                            handler.sendBackClose((ConnectionContext) key.attachment());
+                        }
+                    }
+                }
+
+                // Write the data the relay reader queued since the last iteration
+                ConnectionContext flushContext;
+                while ((flushContext = flushQueue.poll()) != null) {
+                    flushContext.clearFlushScheduled();
+                    processFlush(flushContext);
+                }
+
+                // Read the destinations again that got send credits back
+                ConnectionContext resumeContext;
+                while ((resumeContext = resumeQueue.poll()) != null) {
+                    resumeRead(resumeContext);
+                }
+
+                Runnable registrationTask;
+                while ((registrationTask = registrationTasks.poll()) != null) {
+                    registrationTask.run();
+                }
+
+                // Connect the sessions the relay reader accepted since the last iteration
+                RegistrationRequest registrationRequest;
+                while ((registrationRequest = registrationQueue.poll()) != null) {
+                    registerDestination(registrationRequest);
+                }
+
+                long now = System.nanoTime();
+                timers.advance(now);
+                timeout = selectTimeout(timers.selectTimeout(now), flushRelayLinks(now));
+                RelayMetrics.REACTOR_LOOP.record(System.nanoTime() - clock);
+            } catch (IOException e) {
+                Log.error("", "REPLY-ERROR", "failed to reply to client: {}", e.getMessage());
+            } finally {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void handleDestinationConnect(SelectionKey key) throws DestinationConnectException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        ConnectionContext context = (ConnectionContext) key.attachment();
+
+        ConnectRace race = context.getConnectRace();
+        if (race != null) {
+            SelectionKey winner;
+            try {
+                winner = race.onConnectable(key);
+            } catch (IOException e) {
+                failConnect(context, replyCodeFor(e), e.getMessage());
+                throw new DestinationConnectException(e.getMessage());
+            }
+            if (winner != null) {
+                context.setConnectRace(null);
+                completeConnect(winner, context);
+            }
+            return;
+        }
+
+        try{
+            if(socketChannel.finishConnect()){
+                completeConnect(key, context);
+            } else {
+                failConnect(context, ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE, "connection not established");
+            }
+        } catch (IOException e){
+            failConnect(context, replyCodeFor(e), e.getMessage());
+            throw new DestinationConnectException(e.getMessage());
+        }
+    }
+
+    /* Replies connect success to the client and writes the early data it sent while the connection
+    *  was being established, in the same iteration, so a pipelined TLS ClientHello reaches the
+    *  destination right behind the handshake */
+    private void completeConnect(SelectionKey key, ConnectionContext context) throws DestinationConnectException {
+        context.setSelectionKey(key);
+        if (context.isCloseRequested()) {
+            // the client is gone, it gets no reply
+            context.releaseConnectBytes();
+            lingerClose(key, context);
+            return;
+        }
+        try {
+            key.interestOps(SelectionKey.OP_READ);
+            byte[] connectBytes = context.getConnectBytes();
+            connectBytes[1] = 0;
+            handler.sendBack(ByteBuffer.wrap(connectBytes), context);
+            context.releaseConnectBytes();
+            context.open();
+            RelayMetrics.recordConnect(ReplyCode.SOCKS5.SUCCEEDED, clock - context.getConnectStartedAt());
+            context.touch(clock);
+            context.setTimer(timers.schedule(RelayConfig.IDLE_TIMEOUT_SECONDS * 1_000_000_000L, () -> onSessionTimeout(context)));
+            Log.info(context.getClientID(), "CONNECT", "replied connect success to {}: {} bytes",
+                    ((SocketChannel) key.channel()).socket().getInetAddress().getHostAddress(), connectBytes.length);
+
+            if (context.isCloseRequested()) {
+                lingerClose(key, context);
+            } else if (context.peekWrite() != null) {
+                flushPendingWrites(key);
+            }
+        } catch (DestinationIOException e) {
+            // closed by flushPendingWrites
+            handler.sendBackClose(context);
+            throw new DestinationConnectException(e.getMessage());
+        }
+    }
+
+    /* Writes as much of the session's queued data as the destination server accepts. Whatever is
+    *  left waits for OP_WRITE, so the reactor thread never spins on a full socket buffer */
+    private void flushPendingWrites(SelectionKey key) throws DestinationIOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ConnectionContext context = (ConnectionContext) key.attachment();
+
+        if (!channel.isConnected()) {
+            // flushed by handleDestinationConnect once the connection is established
+            return;
+        }
+
+        try {
+            PooledBuffer pending;
+            while ((pending = context.peekWrite()) != null) {
+                int written = channel.write(pending.buffer());
+                context.releasePendingBytes(written);
+                context.touch(clock);
+                if (pending.buffer().hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                RelayMetrics.DOWNLINK_WRITE_LATENCY.record(System.nanoTime() - pending.getTimestamp());
+                context.completeWrite();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | CancelledKeyException e) {
+            Log.error(context.getClientID(), "FORWARD-ERROR", "error forwarding message: {}", e.getMessage());
+            closeDestination(key, context);
+            throw new DestinationIOException(e.getMessage());
+        }
+    }
+
+    /* Reads the destination until its socket is drained or the session has used its READ_BUDGET
+    *  reads, so one bulk download does not hold up the other destinations of the reactor. Each
+    *  read is sent back as one frame. A session without the send credits for its next read stops
+    *  reading, OP_READ is dropped until the uplink scheduler has given back RESUME_CREDITS (see
+    *  scheduleResume) */
+    private void handleDestinationRead(SelectionKey key) throws DestinationIOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ConnectionContext context = (ConnectionContext) key.attachment();
+        ReadSizer readSizer = context.getReadSizer();
+
+        PooledBuffer data = null;
+        try {
+            for (int reads = 0; reads < RelayConfig.READ_BUDGET; reads++) {
+                if (!context.hasReadCredits(readSizer.size())) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    if (context.pauseRead()) {
+                        RelayMetrics.UPLINK_READ_PAUSES.increment();
+                        return;
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+
+                int readSize = Math.min(readSizer.size(), context.getUplinkCredits());
+                data = bufferPool.allocate(readSize);
+                ByteBuffer buffer = data.buffer();
+                buffer.limit(readSize);
+                int bytesRead = channel.read(buffer);
+                buffer.flip();
+                if (bytesRead < 0) {
+                    /* HALF_CLOSED: the relay gets the close frame after the data already read, and
+                    *  the data the client sent until then is still written */
+                    Log.info(context.getClientID(), "REPLY", "server connection was closed");
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    handler.sendBackClose(context);
+                    lingerClose(key, context);
+                    return;
+                }
+                if (bytesRead == 0) {
+                    return;
+                }
+
+                context.touch(clock);
+                readSizer.record(bytesRead, readSize);
+                handler.sendBack(data, context);
+                data = null;
+                if (Log.isDebugEnabled()) {
+                    Log.debug(context.getClientID(), "REPLY", "replied to client {} bytes", bytesRead);
+                }
+                if (bytesRead < readSize) {
+                    // the socket is drained
+                    return;
+                }
+            }
+        } catch (IOException ioe2) {
+            Log.error(context.getClientID(), "REPLY-ERROR", "failed to reply to client: {}", ioe2.getMessage());
+            closeDestination(key, context);
+            throw new DestinationIOException(ioe2.getMessage());
+        } finally {
+            if (data != null) {
+                data.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package relay.communication;
+
+import relay.RelayConfig;
+
+/**
+ * Picks how many bytes to read from a destination at once. A read that fills the whole size
+ * doubles it, up to the largest frame payload, so a bulk download is sent back in full frames; two
+ * reads in a row that use less than half of it halve it again, down to
+ * {@link RelayConfig#READ_MIN_BYTES}, so an interactive session does not hold large reads.
+ * <p>
+ * A read the session's send credits cut below the size says nothing about the destination when
+ * it fills up, it is not counted.
+ * <p>
+ * One per session, used by the thread reading its destination.
+ */
+public final class ReadSizer {
+
+    private int size = RelayConfig.READ_INITIAL_BYTES;
+    private boolean shrinkNext;
+
+    // The number of bytes to ask for in the next read
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param bytesRead - the bytes the read returned
+     * @param requested - the bytes the read asked for, {@link #size()} or less when capped by credits
+     */
+    public void record(int bytesRead, int requested) {
+        if (requested < size && bytesRead >= requested) {
+            // capped by the credits, the destination may have had more
+            return;
+        }
+        if (bytesRead >= size) {
+            size = Math.min(FrameEncoder.MAX_PAYLOAD_SIZE, size << 1);
+            shrinkNext = false;
+        } else if (bytesRead <= size >> 1) {
+            if (shrinkNext) {
+                size = Math.max(RelayConfig.READ_MIN_BYTES, size >> 1);
+                shrinkNext = false;
+            } else {
+                shrinkNext = true;
+            }
+        } else {
+            shrinkNext = false;
+        }
+    }
+}
@@ -5,10 +5,19 @@ import java.net.InetSocketAddress;
 public class RegistrationRequest {
     private final ConnectionContext context;
     private final InetSocketAddress inetSocketAddress;
+    private final InetSocketAddress[] candidates;
 
     public RegistrationRequest(ConnectionContext context, InetSocketAddress inetSocketAddress) {
         this.context = context;
         this.inetSocketAddress = inetSocketAddress;
+        this.candidates = new InetSocketAddress[]{ inetSocketAddress };
+    }
+
+    // A destination with several addresses, raced by the reactor in the given order
+    public RegistrationRequest(ConnectionContext context, InetSocketAddress[] candidates) {
+        this.context = context;
+        this.inetSocketAddress = candidates[0];
+        this.candidates = candidates;
     }
 
     public ConnectionContext getContext() {
@@ -18,4 +27,8 @@ public class RegistrationRequest {
     public InetSocketAddress getInetSocketAddress() {
         return this.inetSocketAddress;
     }
+
+    public InetSocketAddress[] getCandidates() {
+        return this.candidates;
+    }
 }
@@ -2,336 +2,664 @@ package relay.communication;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import relay.RelayConfig;
 import relay.Utils;
-import relay.exception.DestinationConnectException;
-import relay.exception.DestinationIOException;
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+import relay.dns.DnsResolver;
 import relay.exception.RelayIOException;
-import relay.exception.Socks5Exception;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+import relay.protocol.Command;
+import relay.protocol.ReplyCode;
 import relay.protocol.Protocol;
 import relay.protocol.Socks5;
+import relay.protocol.Socks5Request;
 
 public class RelayCommunicationHandler implements Runnable {
 
-    private static final Queue<RegistrationRequest> registrationQueue = new ConcurrentLinkedQueue<>();
-    private static final Map<String, SocketChannel> connectionsMapper = new HashMap<>();
-
-    private final Socket relaySocket;
-    private Selector selector;
+    private static final SessionTable sessions = new SessionTable();
+    private static final BufferPool bufferPool = new BufferPool(RelayConfig.BUFFER_POOL_BYTES,
+            RelayConfig.BUFFER_POOL_FRAME_BYTES);
+    private static final DnsResolver dnsResolver = new DnsResolver(RelayConfig.DNS_THREADS,
+            RelayConfig.DNS_CACHE_SIZE, RelayConfig.DNS_TTL_SECONDS, RelayConfig.DNS_NEGATIVE_TTL_SECONDS);
+    // Requests split over several frames, kept by session id until the rest has arrived
+    private static final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private static volatile long nextRequestSweepAt = System.nanoTime();
+
+    /* The connections to the relay. The relay pins every session to one link by its id, the
+    *  session's replies go back over the link it arrived on. A failed link is replaced by a new
+    *  one at the same index */
+    private final RelayLink[] relayLinks;
+    private final RelayConnector connector;
+    private AtomicReferenceArray<UplinkScheduler> uplinks;
+    private Reactor[] reactors;
 
     public RelayCommunicationHandler(Socket relaySocket) {
-        this.relaySocket = relaySocket;
+        this(new RelayLink[]{ new SocketRelayLink(relaySocket) });
+    }
+
+    public RelayCommunicationHandler(EngineRelayLink relayLink) {
+        this(new RelayLink[]{ relayLink });
+    }
+
+    // The links are all SocketRelayLinks or all EngineRelayLinks
+    public RelayCommunicationHandler(RelayLink[] relayLinks) {
+        this(relayLinks, null);
+    }
+
+    /**
+     * @param relayLinks - the connected relay links, all SocketRelayLinks or all EngineRelayLinks
+     * @param connector - opens a link of the same kind to replace a failed one, or null to exit
+     *                    the node when a link fails
+     */
+    public RelayCommunicationHandler(RelayLink[] relayLinks, RelayConnector connector) {
+        this.relayLinks = relayLinks;
+        this.connector = connector;
     }
 
     public void run() {
-        System.out.println("Proxy Started.");
-
-        /* Starting the thread that reads data from the destination servers and sends it back
-        *  to the relay */
-        Thread t = new Thread(){
-            @Override
-            public void run() {
-                try{
-                    selector = Selector.open();
-                }catch (Exception e){
-                    e.printStackTrace();
-                    System.exit(1);
+        Log.info(null, null, "Proxy Started.");
+        RelayMetrics.start(sessions::size, bufferPool);
+
+        // Every link sends its sessions' data in deficit round robin
+        uplinks = new AtomicReferenceArray<>(relayLinks.length);
+        for (int i = 0; i < relayLinks.length; i++) {
+            uplinks.set(i, new UplinkScheduler(relayLinks[i], this::resumeRead));
+        }
+
+        /* Starting the reactor threads that read data from the destination servers and send it
+        *  back to the relay. With the virtual thread engine the sessions run on their own threads
+        *  and the reactors only carry the engine relay links */
+        try{
+            int reactorCount = RelayConfig.REACTORS;
+            if (RelayConfig.useVirtualThreads()) {
+                reactorCount = relayLinks[0] instanceof EngineRelayLink ? Math.min(reactorCount, relayLinks.length) : 0;
+            }
+            reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(i, this, bufferPool);
+            }
+            for (int i = 0; i < relayLinks.length; i++) {
+                if (relayLinks[i] instanceof EngineRelayLink engineLink) {
+                    /* Each relay link is registered on a reactor, round robin, so the TLS work of
+                    *  the links is spread over the cores. The link's reads, writes and the I/O of
+                    *  that reactor's destinations all run on one thread */
+                    reactorForLink(i).registerRelayLink(engineLink, frameDecoder(uplinks.get(i)));
                 }
-                writeToRelay();
             }
-        };
-        t.setPriority(Thread.MAX_PRIORITY);
-        t.start();
+        }catch (Exception e){
+            // the shutdown hook of the log writes the line out before the JVM exits
+            Log.error(null, "STARTUP", "could not start the reactors: {}", e.toString());
+            System.exit(1);
+        }
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+
+        if (relayLinks[0] instanceof EngineRelayLink) {
+            return;
+        }
 
+        // One writer and one reader thread per socket link, this thread reads the first one
+        for (int i = 0; i < relayLinks.length; i++) {
+            ((SocketRelayLink) relayLinks[i]).start(i);
+        }
+        for (int i = 1; i < relayLinks.length; i++) {
+            startReader(i, uplinks.get(i));
+        }
+        readLink(uplinks.get(0));
+    }
+
+    private void startReader(int index, UplinkScheduler uplink) {
+        Thread readerThread = new Thread(() -> readLink(uplink), "relay-reader-" + index);
+        readerThread.setPriority(Thread.MAX_PRIORITY);
+        readerThread.start();
+    }
+
+    private void readLink(UplinkScheduler uplink) {
         try{
-            readFromRelay();
+            readFromRelay((SocketRelayLink) uplink.getRelayLink(), uplink);
         } catch (Exception e){
-            System.err.println(e.getMessage());
-            System.exit(3);
-        } finally {
+            onLinkFailure(uplink, e.getMessage());
+        }
+    }
+
+    private FrameDecoder frameDecoder(UplinkScheduler uplink) {
+        // the link's frames are all decoded on one thread at a time
+        Socks5Request request = new Socks5Request();
+        return new FrameDecoder(bufferPool, (idBytes, payload) -> dispatchFrame(uplink, request, idBytes, payload));
+    }
+
+    /* Drops a broken relay link: the sessions pinned to it are closed, since the relay loses them
+    *  with the link, and a new link is connected in the background to take its place. The other
+    *  links keep serving their sessions meanwhile */
+    void onLinkFailure(UplinkScheduler uplink, String reason) {
+        if (!uplink.fail()) {
+            // already handled by another thread of the link
+            return;
+        }
+        RelayMetrics.RELAY_LINK_FAILURES.increment();
+        uplink.getRelayLink().close();
+        if (connector == null) {
+            Log.error(null, null, reason);
             close();
+            System.exit(3);
+        }
+
+        int index = indexOf(uplink);
+        long failedAt = System.nanoTime();
+        int closed = 0;
+        pendingRequests.values().removeIf(pending -> pending.uplink == uplink);
+        for (ConnectionContext context : sessions.removeAll(c -> c.getUplink() == uplink)) {
+            scheduleClose(context);
+            closed++;
         }
+        Log.warn(null, "RELAY", "relay link {} failed, reconnecting: {}", index, reason);
+        Log.info(null, "RELAY", "closed the {} sessions of relay link {}", closed, index);
+
+        Thread reconnectThread = new Thread(() -> {
+            RelayLink relayLink;
+            try {
+                relayLink = connector.connect();
+            } catch (InterruptedException e) {
+                return;
+            }
+            RelayMetrics.RELAY_RECONNECT.record(System.nanoTime() - failedAt);
+            Log.info(null, "RELAY", "relay link {} reconnected after {} ms", index, (System.nanoTime() - failedAt) / 1_000_000L);
+            startLink(index, relayLink);
+        }, "relay-reconnect-" + index);
+        reconnectThread.setDaemon(true);
+        reconnectThread.start();
     }
 
-    public void readFromRelay() throws RelayIOException {
+    // The failure of an engine link, reported by the reactor it is registered on
+    void onRelayLinkFailure(RelayLink relayLink, String reason) {
+        for (int i = 0; i < uplinks.length(); i++) {
+            UplinkScheduler uplink = uplinks.get(i);
+            if (uplink.getRelayLink() == relayLink) {
+                onLinkFailure(uplink, reason);
+                return;
+            }
+        }
+    }
+
+    // Puts a reconnected link in service at the index of the link it replaces
+    private void startLink(int index, RelayLink relayLink) {
+        UplinkScheduler uplink = new UplinkScheduler(relayLink, this::resumeRead);
+        uplinks.set(index, uplink);
+        if (relayLink instanceof EngineRelayLink engineLink) {
+            reactorForLink(index).registerRelayLink(engineLink, frameDecoder(uplink));
+        } else {
+            ((SocketRelayLink) relayLink).start(index);
+            startReader(index, uplink);
+        }
+    }
 
-        while(relaySocket.isConnected()) {
+    private int indexOf(UplinkScheduler uplink) {
+        for (int i = 0; i < uplinks.length(); i++) {
+            if (uplinks.get(i) == uplink) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void readFromRelay(SocketRelayLink socketLink, UplinkScheduler uplink) throws RelayIOException {
+
+        // Reused for every frame, the payload ends up in a pooled buffer
+        byte[] idBytes = new byte[6];
+        byte[] lengthBytes = new byte[2];
+        byte[] data = new byte[FrameEncoder.MAX_PAYLOAD_SIZE];
+        Socks5Request request = new Socks5Request();
+
+        while(socketLink.isConnected()) {
             InputStream inputStream;
 
             try {
-                inputStream = relaySocket.getInputStream();
+                inputStream = socketLink.getInputStream();
             } catch (IOException ioe) {
                 throw new RelayIOException(ioe.getMessage());
             }
 
-            byte[] idBytes = new byte[6];
             // first 6 bytes are session id
             if (!Utils.readExactly(inputStream, idBytes, 6)) {
-                System.err.println("[] invalid packet or connection closed");
+                Log.error("", null, "invalid packet or connection closed");
                 throw new RelayIOException("Could not read the initial 6 bytes from the relay");
             }
 
-            // id is ip/port from end user browser
-            // Extract remote ID string from the metadata
-            String remoteID = Utils.extractRemoteID(idBytes);
-            System.out.println("[" + remoteID + "]" + " received packet");
-
             // 2. Read the next 2 bytes for the length of the data from the metadata
-            byte[] lengthBytes = new byte[2];
             if (!Utils.readExactly(inputStream, lengthBytes, 2)) {
-                System.err.println("[" + remoteID + "]" + " invalid packet length or connection closed");
+                Log.error(Utils.sessionIDToString(Utils.extractSessionID(idBytes)), null, "invalid packet length or connection closed");
                 throw new RelayIOException("Could not read the 2 length bytes from the relay");
             }
 
             // Convert length bytes to an integer
-            int payloadLength = ByteBuffer.wrap(lengthBytes).getShort() & 0xFFFF;
-            System.out.println("[" + remoteID + "]" + " data length: " + payloadLength);
-
-            /* If the data length is 0, this is a close packet, which means the SOCKS client has
-            * closed the connection to the relay, so the connection to the destination server
-            * must also be closed */
-            if(payloadLength == 0){
-                if (connectionsMapper.containsKey(remoteID)) {
-                    SocketChannel socketChannel = connectionsMapper.remove(remoteID);
-                    try {
-                        if(socketChannel != null){
-                            socketChannel.close();
-                        }
-                        System.out.println(remoteID + "]-CLOSE closed socket channel");
-                    } catch (Exception e) {
-                        System.err.println("[" + remoteID + "]-CLOSE-ERROR error closing socket channel: " + e.getMessage());
-                        // ignore
-                    }
-                }
-                continue;
-            }
+            int payloadLength = ((lengthBytes[0] & 0xFF) << 8) | (lengthBytes[1] & 0xFF);
 
             // 3. Read the data based on the extracted length
-            byte[] data = new byte[payloadLength];
             if (!Utils.readExactly(inputStream, data, payloadLength)) {
-                System.err.println("[" + remoteID + "]" + " failed to read the full data or connection closed");
+                Log.error(Utils.sessionIDToString(Utils.extractSessionID(idBytes)), null, "failed to read the full data or connection closed");
                 throw new RelayIOException("Could not read the data bytes from the relay");
             }
 
-            if (connectionsMapper.containsKey(remoteID)) {
-                /* EXISTING SESSION
-                *  the connection must have been established, so the data just needs to be forwarded
-                *  to the destination server */
-                try {
-                    SocketChannel socketChannel = connectionsMapper.get(remoteID);
-                    int written = 0;
-                    do {
-                        written += socketChannel.write(ByteBuffer.wrap(data));
-                        System.out.println(remoteID + "]-FORWARD forwarded " + written + " from " + payloadLength);
-                    } while (written < payloadLength);
-                } catch (ClosedChannelException cce) {
-                    // TODO: send close packet back
-                } catch (Exception e) {
-                    System.err.println("[" + remoteID + "]-FORWARD error forwarding message(" + payloadLength + "): " + e.getMessage());
-                }
-            } else {
-                /* NEW SESSION
-                *  the SOCKS 5 request must be evaluated and a new connection to the destination
-                *  must be established */
-                Protocol protocol = Protocol.valueOf(data[0]);
-
-                try {
-                    switch (protocol) {
-                        case SOCKS5:
-                            InetSocketAddress inetSocketAddress = Socks5.evaluateRequest(data);
-                            System.out.println("[" + remoteID + "]-CONNECT accepted " + protocol + " request");
-                            connectToServer(data, inetSocketAddress, idBytes, remoteID);
-                            break;
-                        default:
-                            System.err.println("[" + remoteID + "]-CONNECT invalid protocol version");
-                            // TODO: send back a close packet to the relay
-                            break;
-                    }
-                } catch (Socks5Exception s5e){
-                    System.err.println("[" + remoteID + "]-CONNECT Socks5Exception: " + s5e.getMessage());
-                    // TODO: to send back the error code create a buffer as an object field and add a block to the writeToRelay method to write it back to the client if the buffer is not empty
-                }
+            PooledBuffer payload = null;
+            if (payloadLength > 0) {
+                payload = bufferPool.allocate(payloadLength);
+                payload.buffer().put(data, 0, payloadLength).flip();
             }
 
+            dispatchFrame(uplink, request, idBytes, payload);
+
             Thread.yield();
         }
     }
 
-    private void connectToServer(byte[] connectBytes,
-                                 InetSocketAddress inetSocketAddress,
-                                 byte[] idBytes,
-                                 String clientID) {
-        // Create a context to hold the state
-        ConnectionContext context = new ConnectionContext(connectBytes, idBytes, clientID);
-
-        // Create a registration request
-        RegistrationRequest registrationRequest = new RegistrationRequest(context,
-                inetSocketAddress);
-        registrationQueue.add(registrationRequest);
-        selector.wakeup();
-    }
+    /* Handles a frame received from the relay, on a relay reader thread or on a reactor thread.
+    *  The id bytes and the request are reused by the caller and the payload is owned by this method */
+    private void dispatchFrame(UplinkScheduler uplink, Socks5Request request, byte[] idBytes, PooledBuffer payload) {
+        // id is ip/port from end user browser
+        // Pack the remote ID into the session table key
+        long sessionID = Utils.extractSessionID(idBytes);
+        RelayMetrics.DOWNLINK_FRAMES.increment();
+        if (payload != null) {
+            RelayMetrics.DOWNLINK_BYTES.add(payload.buffer().remaining());
+            payload.setTimestamp(System.nanoTime());
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug(Utils.sessionIDToString(sessionID), null, "received packet, data length: {}",
+                    payload == null ? 0 : payload.buffer().remaining());
+        }
 
-    private void writeToRelay() {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
-        while (true) {
-            try {
-                selector.select(); // Blocks until an event occurs
+        /* If the data length is 0, this is a close packet, which means the SOCKS client has
+        * closed the connection to the relay, so the connection to the destination server
+        * must also be closed */
+        if(payload == null){
+            pendingRequests.remove(sessionID);
+            ConnectionContext context = sessions.remove(sessionID);
+            if (context != null) {
+                context.markRelayClosed();
+                scheduleClose(context);
+                Log.info(context.getClientID(), "CLOSE", "closing socket channel");
+            }
+            return;
+        }
 
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iter = selectedKeys.iterator();
+        ConnectionContext context = sessions.get(sessionID);
+        if (context != null) {
+            /* EXISTING SESSION
+            *  the data is queued on the session and written by the selector thread once the
+            *  destination server can take it, so a slow destination does not block the relay. Data
+            *  sent before the destination is connected waits as early data. The frames of a UDP
+            *  session are datagrams, sent right away */
+            if (context.getUdpAssociation() != null) {
+                context.getUdpAssociation().send(payload, request);
+            } else {
+                queueWrite(context, payload);
+            }
+        } else {
+            /* NEW SESSION
+            *  the SOCKS 5 request must be evaluated and a new connection to the destination
+            *  must be established */
+            openSession(uplink, request, idBytes, sessionID, payload);
+        }
+    }
 
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-                    String clientId = ((ConnectionContext) key.attachment()).getClientID();
-//                    System.out.println("[" + clientId + "]-SELECTOR next");
+    /* Evaluates the request a new session starts with. A request cut by the end of the frame is
+    *  kept until the next frames complete it, for REQUEST_TIMEOUT_MS at most, and the bytes that
+    *  follow a complete request in its frame are the session's first early data */
+    private void openSession(UplinkScheduler uplink, Socks5Request request, byte[] idBytes, long sessionID, PooledBuffer payload) {
+        String remoteID = Utils.sessionIDToString(sessionID);
+        ByteBuffer frame = payload.buffer();
+        int frameStart = frame.position();
+
+        // the start of the request, carried over from the previous frames
+        ByteBuffer requestBytes = frame;
+        int carried = 0;
+        PendingRequest pending = pendingRequests.remove(sessionID);
+        if (pending != null && pending.uplink == uplink && System.nanoTime() - pending.expiresAt >= 0) {
+            // the rest came too late, the session goes like the ones swept away
+            payload.release();
+            expireRequest(sessionID, pending);
+            return;
+        }
+        if (pending != null && pending.uplink == uplink) {
+            requestBytes = pending.bytes;
+            carried = requestBytes.position();
+            int appended = Math.min(requestBytes.remaining(), frame.remaining());
+            requestBytes.put(carried, frame, frameStart, appended);
+            requestBytes.limit(carried + appended).position(0);
+        }
 
-                    if (!key.isValid()) {
-//                        System.out.println("[" + clientId + "]-SELECTOR invalid");
-                        continue;
-                    }
+        Protocol protocol = Protocol.valueOf(requestBytes.get(requestBytes.position()));
+        if (protocol != Protocol.SOCKS5) {
+            // there is no reply the client would understand, the session is only closed
+            Log.error(remoteID, "CONNECT", "invalid protocol version");
+            payload.release();
+            ConnectionContext context = new ConnectionContext(null, idBytes.clone(), sessionID, remoteID, uplink);
+            context.markClosed();
+            sendBackClose(context);
+            return;
+        }
 
-                    if (key.isConnectable()) {
-//                        System.out.println("[" + clientId + "]-SELECTOR connectable");
-
-                        try {
-                            handleDestinationConnect(key);
-                        } catch (DestinationConnectException e) {
-                            // TODO: send back protocol-specific "could not connect" message
-                        }
-                    } else if (key.isReadable()) {
-//                        System.out.println("[" + clientId + "]-SELECTOR readable");
-
-                        try {
-                            handleDestinationRead(key, buffer);
-                        } catch (DestinationIOException e) {
-                            sendBackClose(((ConnectionContext) key.attachment()).getIdBytes());
-                        }
+        switch (Socks5.evaluateRequest(requestBytes, request)) {
+            case NEED_MORE_DATA:
+                if (pending == null || pending.uplink != uplink) {
+                    long now = System.nanoTime();
+                    if (!hasRoomForPendingRequest(now)) {
+                        Log.error(remoteID, "CONNECT", "{} split requests waiting already, dropping session", pendingRequests.size());
+                        payload.release();
+                        ConnectionContext dropped = new ConnectionContext(null, idBytes.clone(), sessionID, remoteID, uplink);
+                        dropped.markClosed();
+                        sendBackClose(dropped);
+                        return;
                     }
+                    pending = new PendingRequest(uplink, idBytes.clone(), ByteBuffer.allocate(Socks5.MAX_REQUEST_SIZE),
+                            now + RelayConfig.REQUEST_TIMEOUT_MS * 1_000_000L);
+                    pending.bytes.put(frame);
+                } else {
+                    pending.bytes.position(pending.bytes.limit()).limit(pending.bytes.capacity());
                 }
+                pendingRequests.put(sessionID, pending);
+                payload.release();
+                return;
+            case INVALID:
+                Log.error(remoteID, "CONNECT", "invalid request: {}", request.getFailureReason());
+                payload.release();
+                ConnectionContext rejected = new ConnectionContext(null, idBytes.clone(), sessionID, remoteID, uplink);
+                rejected.markClosed();
+                sendBackFailure(rejected, request.getFailure());
+                return;
+            default:
+                break;
+        }
 
-                //
-                while (registrationQueue.peek() != null) {
+        // the connect request is kept by the session until it is replied to
+        byte[] connectBytes = new byte[request.getLength()];
+        requestBytes.get(requestBytes.position() - connectBytes.length, connectBytes);
+        frame.position(frameStart + connectBytes.length - carried);
+        ConnectionContext context = new ConnectionContext(connectBytes, idBytes.clone(), sessionID, remoteID, uplink);
+        Log.info(remoteID, "CONNECT", "accepted {} {} request", protocol, request.getCommand());
+
+        if (request.getCommand() == Command.UDP_ASSOCIATE) {
+            // the client sends its datagrams once it has the reply, in frames of their own
+            payload.release();
+            openAssociation(context);
+            return;
+        }
+
+        // in the table right away, the frames the client pipelines after the request are its early data
+        sessions.put(sessionID, context);
+        if (frame.hasRemaining()) {
+            queueWrite(context, payload);
+        } else {
+            payload.release();
+        }
 
-                    RegistrationRequest registrationRequest = registrationQueue.remove();
-                    ConnectionContext context = registrationRequest.getContext();
+        InetSocketAddress destination = request.toSocketAddress();
+        if (destination.isUnresolved()) {
+            resolveAndConnect(context, destination);
+        } else {
+            connectToServer(context, new InetSocketAddress[]{ destination });
+        }
+    }
 
-                    SocketChannel socketChannel = SocketChannel.open();
-                    socketChannel.configureBlocking(false);
-                    socketChannel.connect(registrationRequest.getInetSocketAddress());
-                    socketChannel.register(selector, SelectionKey.OP_CONNECT, context);
-                    connectionsMapper.put(context.getClientID(), socketChannel);
+    /* Opens the datagram channel of a UDP ASSOCIATE session and replies right away, there is no
+    *  destination to connect to. The address of the request is where the client sends its datagrams
+    *  from, which the relay takes care of */
+    private void openAssociation(ConnectionContext context) {
+        UdpAssociation association;
+        int port;
+        try {
+            association = new UdpAssociation(this, bufferPool, dnsResolver, context, RelayConfig.useVirtualThreads());
+            port = association.getLocalPort();
+        } catch (IOException e) {
+            Log.error(context.getClientID(), "CONNECT-ERROR", "could not open a datagram channel: {}", e.getMessage());
+            RelayMetrics.recordConnect(ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE, System.nanoTime() - context.getConnectStartedAt());
+            context.markClosed();
+            sendBackFailure(context, ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE);
+            return;
+        }
+
+        context.setUdpAssociation(association);
+        context.releaseConnectBytes();
+        sessions.put(context.getSessionID(), context);
+        sendBack(ByteBuffer.wrap(Socks5.associateReply(port)), context);
+        context.open();
+        RelayMetrics.recordConnect(ReplyCode.SOCKS5.SUCCEEDED, System.nanoTime() - context.getConnectStartedAt());
+        Log.info(context.getClientID(), "CONNECT", "replied UDP associate success: port {}", port);
+
+        if (RelayConfig.useVirtualThreads()) {
+            association.start();
+        } else {
+            reactorFor(context.getSessionID()).registerAssociation(association);
+        }
+    }
+
+    /* Closes the split requests whose rest is overdue, at most once per REQUEST_TIMEOUT_MS unless
+    *  the limit is reached, and tells whether one more request may wait */
+    private boolean hasRoomForPendingRequest(long now) {
+        if (now - nextRequestSweepAt >= 0 || pendingRequests.size() >= RelayConfig.PENDING_REQUESTS) {
+            nextRequestSweepAt = now + RelayConfig.REQUEST_TIMEOUT_MS * 1_000_000L;
+            for (Map.Entry<Long, PendingRequest> entry : pendingRequests.entrySet()) {
+                PendingRequest pending = entry.getValue();
+                if (now - pending.expiresAt >= 0 && pendingRequests.remove(entry.getKey(), pending)) {
+                    expireRequest(entry.getKey(), pending);
                 }
-            } catch (IOException e) {
-                System.err.println("[]-REPLY-ERROR failed to reply to client: " + e.getMessage());
-            } finally {
-                Thread.yield();
             }
         }
+        return pendingRequests.size() < RelayConfig.PENDING_REQUESTS;
     }
 
-    private void handleDestinationConnect(SelectionKey key) throws DestinationConnectException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        ConnectionContext context = (ConnectionContext) key.attachment();
-        try{
-            if(socketChannel.finishConnect()){
-                socketChannel.register(selector, SelectionKey.OP_READ, key.attachment());
-                context.getConnectBytes()[1] = 0;
-                sendBack(context.getConnectBytes(),
-                        context.getConnectBytes().length,
-                        context.getIdBytes());
-                System.out.println("[" + context.getClientID() + "]-CONNECT replied connect success: " + context.getConnectBytes().length + " bytes");
-            } else {
-                System.err.println("[" + context.getClientID() + "]-CONNECT-ERROR failed to connect to forward server");
-                key.cancel();
-                socketChannel.close();
+    // The relay is told the session is over, it did not send the rest of the request in time
+    private void expireRequest(long sessionID, PendingRequest pending) {
+        String remoteID = Utils.sessionIDToString(sessionID);
+        Log.error(remoteID, "CONNECT", "request still incomplete after {} ms, closing the session", RelayConfig.REQUEST_TIMEOUT_MS);
+        ConnectionContext expired = new ConnectionContext(null, pending.idBytes, sessionID, remoteID, pending.uplink);
+        expired.markClosed();
+        sendBackClose(expired);
+    }
+
+    // Queues data of the client on its session, a session over its write queue limit is dropped
+    private void queueWrite(ConnectionContext context, PooledBuffer payload) {
+        int size = payload.buffer().remaining();
+        boolean early = context.getState() == ConnectionContext.State.CONNECTING;
+        if (context.offerWrite(payload)) {
+            if (early) {
+                RelayMetrics.EARLY_DATA_BYTES.add(size);
             }
-        } catch (IOException ioe){
-            System.err.println("[" + context.getClientID() + "]-CONNECT-ERROR failed to connect to forward server: " + ioe.getMessage());
-            throw new DestinationConnectException(ioe.getMessage());
+            scheduleFlush(context);
+        } else {
+            Log.error(context.getClientID(), "FORWARD-ERROR", "write queue full ({} bytes), dropping session", context.getPendingWriteBytes());
+            payload.release();
+            sendBackClose(context);
+            scheduleClose(context);
         }
     }
 
-    private void handleDestinationRead(SelectionKey key, ByteBuffer buffer) throws DestinationIOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ConnectionContext context = (ConnectionContext) key.attachment();
-
-        try {
-            int bytesRead = channel.read(buffer);
-            buffer.flip();
-            if (bytesRead <= 0) {
-                System.out.println("[" + context.getClientID() + "]-REPLY server connection was closed");
-                key.cancel();
-                channel.close();
-                sendBackClose(context.getIdBytes());
-            } else {
-                byte[] data = new byte[buffer.limit()];
-                buffer.get(data);
-                sendBack(data, bytesRead, context.getIdBytes());
-//                System.out.println("[" + context.getClientID() + "]-REPLY replied to client " + bytesRead + " bytes");
+    /* Looks the domain name up on the resolver threads (or in its cache) and then connects through
+    *  the same registration path as an IP address request, racing the addresses of both families */
+    private void resolveAndConnect(ConnectionContext context, InetSocketAddress unresolvedAddress) {
+        String host = unresolvedAddress.getHostString();
+        dnsResolver.resolve(host).whenComplete((addresses, error) -> {
+            if (error != null) {
+                Log.error(context.getClientID(), "CONNECT-ERROR", "could not resolve {}: {}", host, error.getMessage());
+                RelayMetrics.recordConnect(ReplyCode.SOCKS5.HOST_UNREACHABLE, System.nanoTime() - context.getConnectStartedAt());
+                // out of the table first, so the relay reader stops queueing early data on it
+                sessions.remove(context.getSessionID(), context);
+                context.markClosed();
+                sendBackFailure(context, ReplyCode.SOCKS5.HOST_UNREACHABLE);
+                releaseEarlyData(context);
+                return;
             }
-        } catch (IOException ioe2) {
-            System.err.println("[" + context.getClientID() + "]-REPLY-ERROR failed to reply to client: " + ioe2.getMessage());
-            throw new DestinationIOException(ioe2.getMessage());
-        } finally {
-            buffer.clear();
+            connectToServer(context, ConnectRace.interleave(addresses, unresolvedAddress.getPort()));
+        });
+    }
+
+    private void connectToServer(ConnectionContext context, InetSocketAddress[] candidates) {
+        if (context.isCloseRequested()) {
+            // the client gave up while its destination was resolved
+            context.markClosed();
+            releaseEarlyData(context);
+            return;
+        }
+
+        if (RelayConfig.useVirtualThreads()) {
+            VirtualSession virtualSession = new VirtualSession(this, bufferPool, context, candidates);
+            context.setVirtualSession(virtualSession);
+            virtualSession.start();
+            return;
         }
+
+        // Create a registration request
+        RegistrationRequest registrationRequest = new RegistrationRequest(context,
+                candidates);
+        reactorFor(context.getSessionID()).register(registrationRequest);
     }
 
-    private void sendBack(byte[] bytes, int len, byte[] idBytes) {
+    /* Hands the data queued on the session to the thread that writes it to the destination. A
+    *  virtual session that is still resolving its destination has no thread yet, the thread writes
+    *  the data once it is connected */
+    private void scheduleFlush(ConnectionContext context) {
+        if (context.getVirtualSession() != null) {
+            context.getVirtualSession().wakeup();
+        } else if (!RelayConfig.useVirtualThreads()) {
+            reactorFor(context.getSessionID()).scheduleFlush(context);
+        } else if (context.getState() == ConnectionContext.State.CLOSED) {
+            // queued while the session failed before it had a thread, nothing else will drop it
+            context.releasePendingWrites();
+        }
+    }
 
-        try {
+    /* Drops the early data of a session that failed before it got a destination. The session's
+    *  reactor owns its write queue and drops what the relay reader queues in the meantime as well.
+    *  With virtual threads the session has no thread yet, the data is dropped right here */
+    private void releaseEarlyData(ConnectionContext context) {
+        if (RelayConfig.useVirtualThreads()) {
+            context.releasePendingWrites();
+        } else {
+            reactorFor(context.getSessionID()).scheduleClose(context);
+        }
+    }
 
-            OutputStream outputStream = relaySocket.getOutputStream();
+    private void scheduleClose(ConnectionContext context) {
+        if (context.getUdpAssociation() != null) {
+            // nothing is queued for a datagram channel, it is closed right away
+            context.getUdpAssociation().close();
+        } else if (context.getVirtualSession() != null) {
+            context.getVirtualSession().close();
+        } else if (RelayConfig.useVirtualThreads()) {
+            context.requestClose();
+        } else {
+            reactorFor(context.getSessionID()).scheduleClose(context);
+        }
+    }
 
-            // The size of the packet will be idBytes + 2 bytes for the length + the actual data length
-            byte[] packet = new byte[idBytes.length + 2 + len];
+    // Every frame of a session is handled by the same reactor, which keeps the session data in order
+    Reactor reactorFor(long sessionID) {
+        long h = sessionID * 0x9E3779B97F4A7C15L;
+        return reactors[(int) ((h >>> 32) % reactors.length)];
+    }
 
-            // Copy the ID (header) bytes into the packet
-            System.arraycopy(idBytes, 0, packet, 0, idBytes.length);
+    // The reactor an engine link is registered on
+    private Reactor reactorForLink(int index) {
+        return reactors[index % reactors.length];
+    }
 
-            // Add the 2-byte length of the message
-            packet[idBytes.length] = (byte) (len >> 8);  // High byte of length
-            packet[idBytes.length + 1] = (byte) (len);   // Low byte of length
+    // Reads and writes of a relay link, when it is registered on a reactor
+    void handleRelayEvent(SelectionKey key) {
+        EngineRelayLink engineLink = (EngineRelayLink) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                engineLink.handleWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                engineLink.handleRead();
+            }
+        } catch (IOException ioe) {
+            // the relay connection is broken
+            onRelayLinkFailure(engineLink, ioe.getMessage());
+        }
+    }
 
-            // Copy the actual data (bytes) into the packet after the ID and length
-            System.arraycopy(bytes, 0, packet, idBytes.length + 2, len);
+    // Sends a copy of the data, for the replies built by the node
+    void sendBack(ByteBuffer payload, ConnectionContext context) {
+        PooledBuffer data = bufferPool.allocate(payload.remaining());
+        data.buffer().put(payload).flip();
+        sendBack(data, context);
+    }
 
-            outputStream.write(packet, 0, packet.length);
-            outputStream.flush();
+    /* Called by the threads reading the destinations. The data takes the session's send credits
+    *  until the session's uplink scheduler has handed it to the relay link */
+    void sendBack(PooledBuffer data, ConnectionContext context) {
+        context.consumeUplinkCredits(data.buffer().remaining());
+        try {
+            context.getUplink().send(context, data);
         } catch (IOException ioe) {
-            // FATAL: failed to write to the relay server
-            System.exit(2);
+            // failed to write to the relay server
+            onLinkFailure(context.getUplink(), ioe.getMessage());
+        }
+    }
+
+    // Runs on the thread that returned the credits, the read resumes on the session's own thread
+    private void resumeRead(ConnectionContext context) {
+        if (context.getVirtualSession() != null) {
+            context.getVirtualSession().resumeRead();
+        } else {
+            reactorFor(context.getSessionID()).scheduleResume(context);
+        }
+    }
+
+    /* Tells the relay the session is over with a zero-length frame, queued behind the data the
+    *  session still has to send. The session leaves the table right away, so its id can be reused
+    *  and the relay does not keep it open until its own timeout */
+    void sendBackClose(ConnectionContext context) {
+        sessions.remove(context.getSessionID(), context);
+        if (!context.markRelayClosed()) {
+            // the relay closed it first, or was already told
+            return;
+        }
+        sendBack(bufferPool.allocate(0), context);
+        Log.info(context.getClientID(), "CLOSE", "sent close to the relay");
+    }
+
+    // Replies the reason of a failed request to the client and closes the session
+    void sendBackFailure(ConnectionContext context, ReplyCode.SOCKS5 replyCode) {
+        context.releaseConnectBytes();
+        if (!context.isCloseRequested()) {
+            sendBack(ByteBuffer.wrap(Socks5.failureReply(replyCode)), context);
         }
+        sendBackClose(context);
     }
 
-    private void sendBackClose(byte[] idBytes) {
-        // TODO: send back a close connection
+    // The start of a request cut by the end of its frame, the buffer is in write mode between frames
+    private static final class PendingRequest {
+        final UplinkScheduler uplink;
+        final byte[] idBytes;
+        final ByteBuffer bytes;
+        final long expiresAt;
+
+        PendingRequest(UplinkScheduler uplink, byte[] idBytes, ByteBuffer bytes, long expiresAt) {
+            this.uplink = uplink;
+            this.idBytes = idBytes;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
     }
 
     private void close() {
-        try {
-            if (relaySocket != null) {
-                relaySocket.close();
-            }
-        } catch (IOException e) {
-            // ignore
+        for (int i = 0; i < uplinks.length(); i++) {
+            uplinks.get(i).getRelayLink().close();
         }
 
-        System.out.println("Proxy Closed.");
+        Log.info(null, null, "Proxy Closed. Buffer pool: {}", bufferPool);
     }
 }
\ No newline at end of file
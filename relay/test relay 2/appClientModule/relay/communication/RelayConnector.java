@@ -0,0 +1,15 @@
+package relay.communication;
+
+/**
+ * Opens a new connection to the relay, used to replace a relay link that broke.
+ */
+public interface RelayConnector {
+
+    /**
+     * Connects to the relay, retrying until it answers.
+     *
+     * @return the new link, its TLS handshake completed or started
+     * @throws InterruptedException - the node is shutting down
+     */
+    RelayLink connect() throws InterruptedException;
+}
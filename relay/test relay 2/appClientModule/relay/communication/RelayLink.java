@@ -0,0 +1,39 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The connection to the relay server that carries the frames of every session.
+ */
+public interface RelayLink {
+
+    /**
+     * Sends a frame back to the relay. Only called from the thread that owns the link writes.
+     *
+     * @param idBytes - the 6 bytes session id
+     * @param payload - the frame data, consumed by the call
+     * @throws IOException - the relay connection is broken
+     */
+    void sendFrame(byte[] idBytes, ByteBuffer payload) throws IOException;
+
+    /**
+     * @return false while the link holds as much unsent data as it should, the
+     *         {@link UplinkScheduler} then keeps the frames on the sessions
+     */
+    boolean hasCapacity();
+
+    /**
+     * @param listener - called when the link has capacity again after {@link #hasCapacity()}
+     *                   returned false
+     */
+    void setCapacityListener(Runnable listener);
+
+    /**
+     * @return true once the relay selected {@link FrameCompressor#ALPN_DEFLATE} during the TLS
+     *         handshake, the data frames of the link then carry a flag byte
+     */
+    boolean isCompressed();
+
+    void close();
+}
@@ -0,0 +1,197 @@
+package relay.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Open addressing hash table of the active sessions, keyed by the session id packed into a long
+ * (see {@link relay.Utils#extractSessionID(byte[])}).
+ * <p>
+ * Lookups are lock free and can run on any thread. Updates are serialized on the table itself.
+ * A value is always published before its key and cleared before its key is removed, so a reader
+ * that finds a key either sees the session or null, never another session's context.
+ */
+public final class SessionTable {
+
+    // Session ids use the lower 48 bits, so negative keys are free to mark the slot state
+    private static final long EMPTY = -1L;
+    private static final long REMOVED = -2L;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+    private int size;
+
+    public ConnectionContext get(long sessionID) {
+        Slots current = slots;
+        int mask = current.mask;
+        int index = hash(sessionID) & mask;
+
+        for (int probes = 0; probes <= mask; probes++) {
+            long key = current.keys.get(index);
+            if (key == sessionID) {
+                return current.values.get(index);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a session to the table.
+     *
+     * @return the context previously stored for the same id, or null
+     */
+    public synchronized ConnectionContext put(long sessionID, ConnectionContext context) {
+        Slots current = slots;
+        if ((size + current.removed + 1) * 4 > current.capacity() * 3) {
+            current = rehash(current);
+        }
+
+        int mask = current.mask;
+        int index = hash(sessionID) & mask;
+        int free = -1;
+
+        while (true) {
+            long key = current.keys.get(index);
+            if (key == sessionID) {
+                return current.values.getAndSet(index, context);
+            }
+            if (key == REMOVED && free == -1) {
+                free = index;
+            } else if (key == EMPTY) {
+                if (free == -1) {
+                    free = index;
+                } else {
+                    current.removed--;
+                }
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+
+        current.values.set(free, context);
+        current.keys.set(free, sessionID);
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes a session from the table.
+     *
+     * @return the removed context, or null if the session was not in the table
+     */
+    public synchronized ConnectionContext remove(long sessionID) {
+        Slots current = slots;
+        int mask = current.mask;
+        int index = hash(sessionID) & mask;
+
+        for (int probes = 0; probes <= mask; probes++) {
+            long key = current.keys.get(index);
+            if (key == sessionID) {
+                ConnectionContext context = current.values.getAndSet(index, null);
+                current.keys.set(index, REMOVED);
+                current.removed++;
+                size--;
+                return context;
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes a session only if it is still mapped to the given context, so a late cleanup of an
+     * old session cannot drop a newer session that reuses the same id.
+     */
+    public synchronized boolean remove(long sessionID, ConnectionContext context) {
+        if (get(sessionID) != context) {
+            return false;
+        }
+        remove(sessionID);
+        return true;
+    }
+
+    /**
+     * Removes every session matching the filter, for instance the sessions of a broken relay link.
+     *
+     * @return the removed contexts
+     */
+    public synchronized List<ConnectionContext> removeAll(Predicate<ConnectionContext> filter) {
+        List<ConnectionContext> removed = new ArrayList<>();
+        Slots current = slots;
+        for (int i = 0; i < current.capacity(); i++) {
+            ConnectionContext context = current.values.get(i);
+            if (context != null && filter.test(context)) {
+                current.values.set(i, null);
+                current.keys.set(i, REMOVED);
+                current.removed++;
+                size--;
+                removed.add(context);
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Grows the table (or just drops the removed markers) and publishes the new slots
+    private Slots rehash(Slots current) {
+        int capacity = current.capacity();
+        if (size * 2 >= capacity) {
+            capacity <<= 1;
+        }
+
+        Slots resized = new Slots(capacity);
+        for (int i = 0; i < current.capacity(); i++) {
+            long key = current.keys.get(i);
+            if (key >= 0) {
+                int index = hash(key) & resized.mask;
+                while (resized.keys.get(index) != EMPTY) {
+                    index = (index + 1) & resized.mask;
+                }
+                resized.values.set(index, current.values.get(i));
+                resized.keys.set(index, key);
+            }
+        }
+
+        slots = resized;
+        return resized;
+    }
+
+    private static int hash(long sessionID) {
+        long h = sessionID * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Slots {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<ConnectionContext> values;
+        private final int mask;
+        private int removed;
+
+        private Slots(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                keys.set(i, EMPTY);
+            }
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+    }
+}
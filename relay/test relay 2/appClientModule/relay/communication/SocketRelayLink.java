@@ -0,0 +1,181 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLSocket;
+
+import relay.RelayConfig;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+
+/**
+ * Relay link over a blocking socket. Frames are read by a dedicated reader thread (see
+ * {@link RelayCommunicationHandler#readFromRelay(SocketRelayLink, UplinkScheduler)}) and written
+ * by a dedicated writer thread: the thread draining the link's {@link UplinkScheduler} encodes
+ * the frames into an {@link UplinkRing} and goes back to its sessions, it never blocks on the
+ * socket.
+ * <p>
+ * The writer lets the frames pile up in the ring and writes them straight from it as soon as they
+ * reach {@link RelayConfig#UPLINK_FLUSH_BYTES} or once the oldest has waited
+ * {@link RelayConfig#UPLINK_FLUSH_MICROS}, so many small frames share one TLS record. The ring holds
+ * {@link RelayConfig#UPLINK_LINK_BUFFER_BYTES}; once it is full the link reports no capacity and
+ * the scheduler keeps the frames on the sessions until the writer has caught up.
+ */
+public final class SocketRelayLink implements RelayLink {
+
+    private static final UplinkRing.WaitStrategy WAIT_STRATEGY = waitStrategy();
+
+    private final Socket socket;
+    private final UplinkRing ring;
+    private final boolean compressed;
+
+    private volatile Runnable capacityListener;
+    private volatile boolean capacityWanted;
+    private volatile IOException writeFailure;
+
+    public SocketRelayLink(Socket socket) {
+        this.socket = socket;
+        this.ring = new UplinkRing(RelayConfig.UPLINK_LINK_BUFFER_BYTES, WAIT_STRATEGY);
+        // the handshake is done before the link is created
+        this.compressed = socket instanceof SSLSocket sslSocket
+                && FrameCompressor.ALPN_DEFLATE.equals(sslSocket.getApplicationProtocol());
+    }
+
+    /**
+     * Starts the writer thread of the link, frames sent before only wait in the ring.
+     *
+     * @param index - the index of the link, which names its writer thread
+     */
+    public void start(int index) {
+        Thread writer = new Thread(this::writeToRelay, "relay-uplink-writer-" + index);
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MAX_PRIORITY);
+        writer.start();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /* The frame is encoded straight from the read buffer into the ring, which is the only copy
+    *  before the socket. The scheduler only sends while the link has capacity, so the ring is
+    *  only full here when the link is failing or closed */
+    @Override
+    public void sendFrame(byte[] idBytes, ByteBuffer payload) throws IOException {
+        while (!ring.offer(idBytes, payload, System.nanoTime())) {
+            IOException failure = writeFailure;
+            if (failure != null) {
+                throw failure;
+            }
+            if (ring.isClosed()) {
+                throw new IOException("relay link closed");
+            }
+            LockSupport.parkNanos(this, 50_000L);
+        }
+    }
+
+    // The frames the writer has not taken yet are bounded by UPLINK_LINK_BUFFER_BYTES
+    @Override
+    public boolean hasCapacity() {
+        if (writeFailure != null || ring.hasRoom()) {
+            return true;
+        }
+        // checked again once asked for, the writer may have made room in between
+        capacityWanted = true;
+        if (ring.hasRoom()) {
+            return true;
+        }
+        RelayMetrics.UPLINK_RING_FULL.increment();
+        return false;
+    }
+
+    @Override
+    public void setCapacityListener(Runnable listener) {
+        this.capacityListener = listener;
+    }
+
+    @Override
+    public void close() {
+        ring.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /* Runs on the writer thread until the link is closed or fails. Any failure of the writer closes
+    *  the socket, so the reader thread reports the link failure */
+    private void writeToRelay() {
+        long flushDelay = RelayConfig.UPLINK_FLUSH_MICROS * 1000L;
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            while (!ring.isClosed()) {
+                int pendingBytes = ring.scan();
+                if (pendingBytes == 0) {
+                    ring.await(0);
+                    continue;
+                }
+                long deadline = ring.oldest() + flushDelay;
+                if (pendingBytes >= RelayConfig.UPLINK_FLUSH_BYTES || flushDelay == 0
+                        || System.nanoTime() - deadline >= 0) {
+                    ring.writeTo(outputStream, RelayMetrics.UPLINK_FLUSH_LATENCY);
+                    notifyCapacity();
+                } else {
+                    ring.await(deadline);
+                }
+            }
+        } catch (IOException ioe) {
+            if (!ring.isClosed()) {
+                Log.error(null, "RELAY", "failed to write to the relay: {}", ioe.getMessage());
+            }
+            fail(ioe);
+        } catch (Throwable t) {
+            // a dead writer would leave the link without capacity and its sessions stalled for good
+            Log.error(null, "RELAY", "relay link writer failed: {}", t.toString());
+            fail(new IOException("relay link writer failed", t));
+        }
+    }
+
+    // Closes the link and reports the failure to the next sender
+    private void fail(IOException failure) {
+        writeFailure = failure;
+        close();
+        // the scheduler drains and finds the link broken
+        capacityWanted = true;
+        notifyCapacity();
+    }
+
+    // Resumes the scheduler drain that stopped on a full ring once there is room again
+    private void notifyCapacity() {
+        Runnable listener = capacityListener;
+        if (capacityWanted && listener != null && (writeFailure != null || ring.hasRoom())) {
+            capacityWanted = false;
+            listener.run();
+        }
+    }
+
+    private static UplinkRing.WaitStrategy waitStrategy() {
+        try {
+            return UplinkRing.WaitStrategy.valueOf(RelayConfig.UPLINK_WAIT_STRATEGY.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Log.warn(null, "RELAY", "unknown uplink wait strategy {}, parking", RelayConfig.UPLINK_WAIT_STRATEGY);
+            return UplinkRing.WaitStrategy.PARK;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package relay.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel driven by a reactor's selector loop. Time is cut in ticks, every bucket of
+ * the wheel holds the timeouts of the ticks that map to it, so scheduling and cancelling a timeout
+ * are O(1) and advancing the wheel only looks at the buckets of the elapsed ticks. Timeouts that are
+ * more than one rotation away stay in their bucket until their tick comes around.
+ * <p>
+ * The wheel is not thread safe, it is only used from the thread of the reactor that owns it.
+ */
+public final class TimerWheel {
+
+    private final long tickNanos;
+    private final long startTime;
+    private final Timeout[] buckets;
+    private final int mask;
+
+    private final List<Timeout> expired = new ArrayList<>();
+    private long processedTick;
+    private int pending;
+
+    /**
+     * @param tickNanos - resolution of the timeouts
+     * @param wheelSize - number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickNanos, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.startTime = System.nanoTime();
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules a task to run on the reactor thread once the delay has elapsed, rounded up to the
+     * next tick.
+     *
+     * @return the handle to cancel the timeout
+     */
+    public Timeout schedule(long delayNanos, Runnable task) {
+        long deadlineTick = (System.nanoTime() - startTime + delayNanos + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(Math.max(deadlineTick, processedTick + 1), task);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the tasks of the timeouts that are due at the given time.
+     */
+    public void advance(long now) {
+        long currentTick = (now - startTime) / tickNanos;
+        if (pending == 0) {
+            processedTick = Math.max(processedTick, currentTick);
+            return;
+        }
+
+        // a full rotation visits every bucket, there is nothing more to check past it
+        long firstTick = Math.max(processedTick + 1, currentTick - mask);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Timeout timeout = buckets[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= currentTick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        processedTick = Math.max(processedTick, currentTick);
+
+        // the tasks may schedule and cancel timeouts, so they run once the buckets are consistent
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout timeout = expired.get(i);
+            if (!timeout.cancelled) {
+                timeout.cancelled = true;
+                timeout.task.run();
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * Time the selector can block before the next non-empty bucket is due.
+     *
+     * @return milliseconds to pass to {@link java.nio.channels.Selector#select(long)}, 0 when no
+     *         timeout is pending
+     */
+    public long selectTimeout(long now) {
+        if (pending == 0) {
+            return 0;
+        }
+
+        long tick = processedTick + 1;
+        for (int i = 0; i <= mask; i++, tick++) {
+            if (buckets[(int) (tick & mask)] != null) {
+                break;
+            }
+        }
+        long remaining = startTime + tick * tickNanos - now;
+        // select(timeout) treats 0 as no timeout
+        return Math.max(1, (remaining + 999_999) / 1_000_000);
+    }
+
+    public int getPending() {
+        return this.pending;
+    }
+
+    private void link(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & mask);
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.wheel = this;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        pending--;
+    }
+
+    /**
+     * A scheduled task, linked in the bucket of its deadline.
+     */
+    public static final class Timeout {
+        private final long deadlineTick;
+        private final Runnable task;
+
+        private TimerWheel wheel;
+        private Timeout prev;
+        private Timeout next;
+        private boolean cancelled;
+
+        private Timeout(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        // Prevents the task from running, has no effect once it ran
+        public void cancel() {
+            cancelled = true;
+            if (wheel != null) {
+                wheel.unlink(this);
+            }
+        }
+    }
+}
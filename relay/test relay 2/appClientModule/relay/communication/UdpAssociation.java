@@ -0,0 +1,230 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import relay.RelayConfig;
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+import relay.dns.DnsResolver;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+import relay.protocol.Socks5;
+import relay.protocol.Socks5Request;
+
+/**
+ * The datagram side of a UDP ASSOCIATE session. Every relay frame of the session carries one
+ * datagram of the client behind the SOCKS 5 UDP request header, which names its destination. The
+ * datagrams of the session are all sent from one {@link DatagramChannel}, and the datagrams the
+ * channel receives are framed back behind the header of their source.
+ * <p>
+ * The relay reader sends the datagrams itself: a send does not wait for the destination, and a
+ * datagram the socket buffer cannot take is dropped as the network would drop it. The channel is
+ * read by the reactor of the session, registered on its selector, or by a virtual thread with
+ * relay.engine=virtual. Datagrams received while the session is out of send credits are dropped
+ * instead of pausing the read, and an association without traffic for
+ * {@link RelayConfig#UDP_IDLE_TIMEOUT_SECONDS} is closed.
+ */
+public final class UdpAssociation {
+
+    // The largest datagram payload, IPv4 and IPv6 alike, it always fits in a frame behind the header
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final RelayCommunicationHandler handler;
+    private final BufferPool bufferPool;
+    private final DnsResolver dnsResolver;
+    private final ConnectionContext context;
+    private final DatagramChannel channel;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long lastActivity = System.nanoTime();
+    private volatile Thread watchdog;
+
+    /**
+     * Opens the session's datagram channel on an ephemeral port of the wildcard address.
+     *
+     * @param blocking - false for a channel registered on a reactor, true for the virtual engine
+     */
+    public UdpAssociation(RelayCommunicationHandler handler, BufferPool bufferPool, DnsResolver dnsResolver,
+                          ConnectionContext context, boolean blocking) throws IOException {
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.dnsResolver = dnsResolver;
+        this.context = context;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(blocking);
+            channel.bind(null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public ConnectionContext getContext() {
+        return this.context;
+    }
+
+    public DatagramChannel getChannel() {
+        return this.channel;
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Sends a datagram of the client to the destination its header names, called by the relay
+     * reader. A datagram with an invalid header, a destination that cannot be resolved or a full
+     * socket buffer is dropped.
+     *
+     * @param payload - the frame, owned by this method
+     * @param request - reused by the relay reader, receives the destination
+     */
+    public void send(PooledBuffer payload, Socks5Request request) {
+        if (Socks5.evaluateDatagram(payload.buffer(), request) != Socks5.ParseResult.COMPLETE) {
+            Log.debug(context.getClientID(), "UDP", "dropped a datagram with an invalid header");
+            drop(payload);
+            return;
+        }
+        lastActivity = System.nanoTime();
+
+        InetSocketAddress destination = request.toSocketAddress();
+        if (!destination.isUnresolved()) {
+            sendTo(payload, destination);
+            return;
+        }
+        dnsResolver.resolve(destination.getHostString()).whenComplete((addresses, error) -> {
+            if (error != null) {
+                Log.debug(context.getClientID(), "UDP", "dropped a datagram to {}: {}", destination.getHostString(), error.getMessage());
+                drop(payload);
+                return;
+            }
+            sendTo(payload, new InetSocketAddress(addresses[0], destination.getPort()));
+        });
+    }
+
+    private void sendTo(PooledBuffer payload, InetSocketAddress destination) {
+        try {
+            int size = payload.buffer().remaining();
+            if (channel.send(payload.buffer(), destination) == size) {
+                RelayMetrics.UDP_DATAGRAMS_OUT.increment();
+            } else {
+                RelayMetrics.UDP_DROPPED.increment();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                Log.debug(context.getClientID(), "UDP", "dropped a datagram to {}: {}", destination, e.getMessage());
+            }
+            RelayMetrics.UDP_DROPPED.increment();
+        } finally {
+            payload.release();
+        }
+    }
+
+    private void drop(PooledBuffer payload) {
+        RelayMetrics.UDP_DROPPED.increment();
+        payload.release();
+    }
+
+    /**
+     * Receives one datagram and sends it back to the relay behind the header of its source.
+     *
+     * @param scratch - receives the datagram, {@link #MAX_DATAGRAM_SIZE} bytes, reused by the caller
+     * @return false if no datagram was waiting
+     * @throws IOException - the channel failed or was closed
+     */
+    boolean receive(ByteBuffer scratch) throws IOException {
+        scratch.clear();
+        InetSocketAddress source = (InetSocketAddress) channel.receive(scratch);
+        if (source == null) {
+            return false;
+        }
+        scratch.flip();
+        lastActivity = System.nanoTime();
+
+        if (closed.get() || context.getUplinkCredits() <= 0) {
+            // the session is over, or its client does not keep up
+            RelayMetrics.UDP_DROPPED.increment();
+            return true;
+        }
+
+        int headerSize = Socks5.datagramHeaderSize(source.getAddress());
+        PooledBuffer data = bufferPool.allocate(headerSize + scratch.remaining());
+        Socks5.putDatagramHeader(data.buffer(), 0, source);
+        data.buffer().position(headerSize);
+        data.buffer().put(scratch).flip();
+        RelayMetrics.UDP_DATAGRAMS_IN.increment();
+        handler.sendBack(data, context);
+        return true;
+    }
+
+    /**
+     * Closes the association once it has been idle for {@link RelayConfig#UDP_IDLE_TIMEOUT_SECONDS},
+     * and tells the relay.
+     *
+     * @return the nanoseconds left before it may expire, or -1 once it is closed
+     */
+    long expireIfIdle() {
+        if (closed.get()) {
+            return -1;
+        }
+        long idleTimeout = RelayConfig.UDP_IDLE_TIMEOUT_SECONDS * 1_000_000_000L;
+        long idle = System.nanoTime() - lastActivity;
+        if (idle < idleTimeout) {
+            return idleTimeout - idle;
+        }
+        Log.info(context.getClientID(), "IDLE", "closing UDP session idle for {} s", idle / 1_000_000_000L);
+        close();
+        handler.sendBackClose(context);
+        return -1;
+    }
+
+    // Starts the threads of the association with relay.engine=virtual
+    public void start() {
+        watchdog = Thread.ofVirtual().name("udp-idle-" + context.getClientID()).start(() -> {
+            long remaining;
+            while ((remaining = expireIfIdle()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        });
+        Thread.ofVirtual().name("udp-" + context.getClientID()).start(this::readDatagrams);
+    }
+
+    // Runs on the association's virtual thread, the blocking receive ends when the channel is closed
+    private void readDatagrams() {
+        ByteBuffer scratch = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        try {
+            while (receive(scratch)) {
+                // a blocking channel always returns a datagram
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                Log.error(context.getClientID(), "REPLY-ERROR", "failed to receive a datagram: {}", e.getMessage());
+                close();
+                handler.sendBackClose(context);
+            }
+        }
+    }
+
+    // Closes the channel, from any thread, the session is CLOSED
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        context.markClosed();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error(context.getClientID(), "CLOSE-ERROR", "error closing datagram channel: {}", e.getMessage());
+        }
+        LockSupport.unpark(watchdog);
+    }
+}
@@ -0,0 +1,297 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import relay.metrics.Histogram;
+
+/**
+ * Lock-free ring of encoded relay frames, written by any number of threads and read by the single
+ * writer thread of a relay link. The frames lie back to back in the ring as they go on the link,
+ * so the writer hands them to the socket straight from the ring's array: one write, or two when
+ * they wrap around its end.
+ * <p>
+ * Every frame also takes a record slot, which holds its size and the time it was handed over. A
+ * producer claims the bytes and the slot of its frame with one CAS on the tail, which packs the
+ * record sequence in its high 32 bits and the byte position in its low 32 bits, encodes the frame
+ * in place and publishes it by setting the slot's size last. A frame that does not fit before the
+ * end of the ring is preceded by a padding record, whose negative size tells the writer to go on
+ * at the start.
+ * <p>
+ * The capacity is bounded in bytes and in records: {@link #offer} fails when the frame does not
+ * fit, which is how the link feeds back pressure to the sessions. The room of the frames comes
+ * back once they are written.
+ */
+public final class UplinkRing {
+
+    // How the consumer waits for frames, the first two answer sooner but keep a core busy
+    public enum WaitStrategy {
+        SPIN, YIELD, PARK
+    }
+
+    private static final VarHandle SIZES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // The largest frame, with its header
+    public static final int MAX_FRAME_SIZE = FrameEncoder.HEADER_SIZE + FrameEncoder.MAX_PAYLOAD_SIZE;
+    // Ring bytes per record slot, the frames of the sessions are larger on average
+    private static final int BYTES_PER_RECORD = 64;
+    // Record slots a full frame may take, the frame and a padding record
+    private static final int RECORDS_PER_FRAME = 2;
+
+    private final byte[] buffer;
+    private final int mask;
+    private final int[] sizes;          // per record: 0 until published, the frame size, or -padding
+    private final long[] timestamps;    // per record: when the frame was handed over
+    private final int recordMask;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong tail = new AtomicLong();   // next record and byte claimed by a producer
+    private volatile long head;                         // next record and byte to write, the room before is free
+
+    // The consumer's scan of the published records, from head
+    private int scanSequence;
+    private int scanPosition;
+    private int pendingBytes;
+    private long oldest;
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity - bytes of the ring, rounded up to a power of two of at least twice the
+     *                   largest frame
+     * @param waitStrategy - how {@link #await(long)} waits
+     */
+    public UplinkRing(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * MAX_FRAME_SIZE) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.sizes = new int[size / BYTES_PER_RECORD];
+        this.timestamps = new long[size / BYTES_PER_RECORD];
+        this.recordMask = sizes.length - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // Whether a frame of any size fits right now, with the padding it may need
+    public boolean hasRoom() {
+        long claimed = tail.get();
+        long written = head;
+        return buffer.length - (position(claimed) - position(written)) >= 2 * MAX_FRAME_SIZE
+                && sizes.length - (sequence(claimed) - sequence(written)) >= 2 * RECORDS_PER_FRAME;
+    }
+
+    /**
+     * Encodes a frame into the ring. Called by any thread.
+     *
+     * @param idBytes - the 6 bytes session id
+     * @param payload - the frame data, consumed when the frame fits
+     * @param timestamp - when the frame was handed over, for the flush latency
+     * @return false if the ring has no room for the frame
+     */
+    public boolean offer(byte[] idBytes, ByteBuffer payload, long timestamp) {
+        int frameSize = FrameEncoder.HEADER_SIZE + payload.remaining();
+
+        long claimed;
+        int sequence;
+        int position;
+        int padding;
+        int records;
+        do {
+            claimed = tail.get();
+            sequence = sequence(claimed);
+            position = position(claimed);
+            int toEnd = buffer.length - (position & mask);
+            padding = frameSize > toEnd ? toEnd : 0;
+            records = padding > 0 ? 2 : 1;
+
+            long written = head;
+            if (padding + frameSize > buffer.length - (position - position(written))
+                    || records > sizes.length - (sequence - sequence(written))) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, pack(sequence + records, position + padding + frameSize)));
+
+        if (padding > 0) {
+            SIZES.setVolatile(sizes, sequence & recordMask, -padding);
+            sequence++;
+        }
+        FrameEncoder.encode(idBytes, payload, buffer, (position + padding) & mask);
+        timestamps[sequence & recordMask] = timestamp;
+        // volatile rather than release, a parking consumer must not miss it
+        SIZES.setVolatile(sizes, sequence & recordMask, frameSize);
+
+        if (waitStrategy == WaitStrategy.PARK && consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the frames published since the last call to the pending ones. Only called by the
+     * consumer.
+     *
+     * @return the bytes of the frames published and not written yet
+     */
+    public int scan() {
+        int headSequence = sequence(head);
+        // with every record slot taken, the one after the last is still the head's
+        while (scanSequence - headSequence < sizes.length) {
+            int index = scanSequence & recordMask;
+            int size = (int) SIZES.getVolatile(sizes, index);
+            if (size == 0) {
+                return pendingBytes;
+            }
+            if (size > 0) {
+                if (pendingBytes == 0) {
+                    oldest = timestamps[index];
+                }
+                pendingBytes += size;
+            }
+            scanPosition += Math.abs(size);
+            scanSequence++;
+        }
+        return pendingBytes;
+    }
+
+    // When the oldest pending frame was handed over, only valid while some are pending
+    public long oldest() {
+        return oldest;
+    }
+
+    /**
+     * Writes the pending frames straight from the ring, records how long each waited and gives
+     * their room back to the producers. Only called by the consumer.
+     *
+     * @param out - the stream the frames are written and flushed to
+     * @param flushLatency - receives the time every frame waited in the ring
+     */
+    public void writeTo(OutputStream out, Histogram flushLatency) throws IOException {
+        long written = head;
+        int firstSequence = sequence(written);
+        int position = position(written);
+        int start = position & mask;
+        int length = 0;
+        for (int sequence = firstSequence; sequence != scanSequence; sequence++) {
+            int size = sizes[sequence & recordMask];
+            if (size > 0) {
+                length += size;
+            }
+            position += Math.abs(size);
+            // a padding record, or a frame ending right at the end of the ring, the next one is at the start
+            if ((position & mask) == 0) {
+                if (length > 0) {
+                    out.write(buffer, start, length);
+                }
+                start = 0;
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            out.write(buffer, start, length);
+        }
+        out.flush();
+
+        long now = System.nanoTime();
+        for (int sequence = firstSequence; sequence != scanSequence; sequence++) {
+            int index = sequence & recordMask;
+            if (sizes[index] > 0) {
+                flushLatency.record(now - timestamps[index]);
+            }
+        }
+        clearRecords(firstSequence, scanSequence);
+        pendingBytes = 0;
+        head = pack(scanSequence, scanPosition);
+    }
+
+    // Zeroes the slots of the written records, they are unpublished again for their next use
+    private void clearRecords(int from, int to) {
+        int first = from & recordMask;
+        int last = to & recordMask;
+        if (first < last || from == to) {
+            Arrays.fill(sizes, first, last, 0);
+        } else {
+            Arrays.fill(sizes, first, sizes.length, 0);
+            Arrays.fill(sizes, 0, last, 0);
+        }
+    }
+
+    // Whether the consumer has nothing new to scan
+    public boolean isEmpty() {
+        return scanSequence - sequence(head) == sizes.length
+                || (int) SIZES.getVolatile(sizes, scanSequence & recordMask) == 0;
+    }
+
+    /**
+     * Waits until a frame is published, the deadline passes or the ring is closed. Only called by
+     * the consumer.
+     *
+     * @param deadline - the {@link System#nanoTime()} to give up at, or 0 to wait without a deadline
+     */
+    public void await(long deadline) {
+        while (isEmpty() && !closed) {
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                return;
+            }
+            switch (waitStrategy) {
+                case SPIN:
+                    Thread.onSpinWait();
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    consumer = Thread.currentThread();
+                    consumerWaiting = true;
+                    try {
+                        if (isEmpty() && !closed) {
+                            if (deadline == 0) {
+                                LockSupport.park(this);
+                            } else {
+                                LockSupport.parkNanos(this, deadline - System.nanoTime());
+                            }
+                        }
+                    } finally {
+                        consumerWaiting = false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Wakes the consumer up for good, it stops once it sees isClosed
+    public void close() {
+        closed = true;
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Positions and sequences wrap around at 32 bits, their differences stay right
+    private static long pack(int sequence, int position) {
+        return ((long) sequence << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    private static int sequence(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static int position(long packed) {
+        return (int) packed;
+    }
+}
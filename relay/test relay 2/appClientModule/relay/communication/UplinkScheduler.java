@@ -0,0 +1,188 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import relay.RelayConfig;
+import relay.buffer.PooledBuffer;
+import relay.metrics.RelayMetrics;
+
+/**
+ * Decides which session's data goes onto a relay link next. The data read from the destinations
+ * is queued on the sessions, and the sessions that have data are served in deficit round robin:
+ * each turn adds {@link RelayConfig#UPLINK_QUANTUM_BYTES} to the session's deficit and the session
+ * sends frames while they fit in it. A bulk download then gets the same share of the link as an
+ * interactive session instead of filling it.
+ * <p>
+ * Every byte queued uses one of the session's send credits (see
+ * {@link ConnectionContext#consumeUplinkCredits(int)}), which come back once the link has taken
+ * the data. A session out of credits stops reading its destination, so the data buffered for a
+ * slow relay is bounded by {@link RelayConfig#UPLINK_CREDIT_BYTES} per session.
+ * <p>
+ * There is no scheduler thread: the thread that queues data drains the sessions unless another
+ * thread already does, and stops while the link has no capacity left. The link resumes the drain
+ * once it has caught up.
+ * <p>
+ * On a link negotiated with compression every data frame goes through the scheduler's
+ * {@link FrameCompressor}, which is only used by the draining thread.
+ * <p>
+ * A scheduler lives as long as its link. Once the link has failed the data still queued or sent
+ * to it is released, the sessions are closed and a reconnected link gets a new scheduler.
+ */
+public final class UplinkScheduler {
+
+    private final RelayLink relayLink;
+    private final Consumer<ConnectionContext> resumeRead;
+
+    // Sessions with queued data, in the order they get their next turn
+    private final Queue<ConnectionContext> active = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean failed = new AtomicBoolean();
+    // Created by the first drain of a compressed link, the handshake is done by then
+    private FrameCompressor compressor;
+
+    /**
+     * @param relayLink - the link the sessions are sent on
+     * @param resumeRead - called with a session whose read was paused once credits came back to it
+     */
+    public UplinkScheduler(RelayLink relayLink, Consumer<ConnectionContext> resumeRead) {
+        this.relayLink = relayLink;
+        this.resumeRead = resumeRead;
+        relayLink.setCapacityListener(this::drain);
+    }
+
+    public RelayLink getRelayLink() {
+        return this.relayLink;
+    }
+
+    /**
+     * Queues data for the relay and sends what the link can take. The caller has already taken the
+     * credits for the data.
+     *
+     * @param context - the session the data belongs to
+     * @param data - the frame payload, owned by the scheduler from now on
+     * @throws IOException - the relay connection is broken
+     */
+    public void send(ConnectionContext context, PooledBuffer data) throws IOException {
+        if (failed.get()) {
+            data.release();
+            return;
+        }
+        context.offerUplink(data);
+        if (context.markUplinkActive()) {
+            active.add(context);
+        }
+        drainOrThrow();
+    }
+
+    // Sends the queued data of the sessions, called when the link has capacity again
+    public void drain() {
+        try {
+            drainOrThrow();
+        } catch (IOException ioe) {
+            // the next sender finds the link broken
+        }
+    }
+
+    /**
+     * Marks the link as failed and releases the data queued for it.
+     *
+     * @return false if the link had already failed
+     */
+    public boolean fail() {
+        if (!failed.compareAndSet(false, true)) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    public boolean isFailed() {
+        return failed.get();
+    }
+
+    private void drainOrThrow() throws IOException {
+        while ((failed.get() || relayLink.hasCapacity()) && !active.isEmpty()) {
+            if (!draining.compareAndSet(false, true)) {
+                // the draining thread also sends what was just queued
+                return;
+            }
+            try {
+                drainActive();
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void drainActive() throws IOException {
+        ConnectionContext context;
+        while ((failed.get() || relayLink.hasCapacity()) && (context = active.poll()) != null) {
+            int deficit = context.getUplinkDeficit() + RelayConfig.UPLINK_QUANTUM_BYTES;
+
+            PooledBuffer data;
+            while ((data = context.peekUplink()) != null) {
+                int size = data.buffer().remaining();
+                if (size > deficit) {
+                    break;
+                }
+                context.pollUplink();
+                deficit -= size;
+                try {
+                    if (!failed.get()) {
+                        sendFrames(context.getIdBytes(), data.buffer());
+                    }
+                } finally {
+                    data.release();
+                }
+                if (context.returnUplinkCredits(size)) {
+                    resumeRead.accept(context);
+                }
+                if (!failed.get() && !relayLink.hasCapacity()) {
+                    break;
+                }
+            }
+
+            if (context.peekUplink() != null) {
+                context.setUplinkDeficit(deficit);
+                active.add(context);
+            } else {
+                // an idle session does not keep its deficit
+                context.setUplinkDeficit(0);
+                context.clearUplinkActive();
+                if (context.peekUplink() != null && context.markUplinkActive()) {
+                    active.add(context);
+                }
+            }
+        }
+    }
+
+    /* Data over the 2 bytes length limit is split into several frames, one byte shorter on a
+    *  compressed link to leave room for the flag byte. Empty data is the close frame of the
+    *  session, sent after the rest of its data and never compressed */
+    private void sendFrames(byte[] idBytes, ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) {
+            RelayMetrics.UPLINK_FRAMES.increment();
+            relayLink.sendFrame(idBytes, payload);
+            return;
+        }
+        if (compressor == null && relayLink.isCompressed()) {
+            compressor = new FrameCompressor();
+        }
+        int maxFrameSize = compressor != null ? FrameCompressor.MAX_DATA_SIZE : FrameEncoder.MAX_PAYLOAD_SIZE;
+        int limit = payload.limit();
+        while (payload.hasRemaining()) {
+            int frameSize = Math.min(payload.remaining(), maxFrameSize);
+            payload.limit(payload.position() + frameSize);
+            RelayMetrics.UPLINK_FRAMES.increment();
+            RelayMetrics.UPLINK_BYTES.add(frameSize);
+            RelayMetrics.UPLINK_FRAME_SIZE.record(frameSize);
+            relayLink.sendFrame(idBytes, compressor != null ? compressor.encode(payload) : payload);
+            payload.limit(limit);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package relay.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import relay.RelayConfig;
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+import relay.log.Log;
+import relay.metrics.RelayMetrics;
+import relay.protocol.ReplyCode;
+
+/**
+ * A session of the virtual thread engine (relay.engine=virtual), the alternative to the
+ * {@link Reactor}s. The session's own virtual thread connects to the destination with a blocking
+ * channel and writes the data the relay demultiplexer queues on the session's
+ * {@link ConnectionContext}, which acts as its mailbox: the relay reader queues the data and
+ * unparks the thread. A second virtual thread reads the destination and sends the data back.
+ * <p>
+ * A blocking write simply holds the session thread until the destination takes the data, so the
+ * only backpressure needed is the bound of the mailbox. The timeouts are parked for instead of
+ * being scheduled on a timer wheel.
+ */
+public final class VirtualSession implements Runnable {
+
+    private final RelayCommunicationHandler handler;
+    private final BufferPool bufferPool;
+    private final ConnectionContext context;
+    private final InetSocketAddress[] candidates;
+    private final Thread thread;
+    private volatile Thread readerThread;
+
+    private volatile SocketChannel channel;
+    private volatile long lastActivity;
+    private volatile boolean finished;
+
+    public VirtualSession(RelayCommunicationHandler handler, BufferPool bufferPool,
+                          ConnectionContext context, InetSocketAddress[] candidates) {
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.context = context;
+        this.candidates = candidates;
+        this.thread = Thread.ofVirtual().name("session-" + context.getClientID()).unstarted(this);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Called by the relay reader once data is queued on the context
+    public void wakeup() {
+        if (finished) {
+            // nobody is left to write it
+            context.releasePendingWrites();
+        } else {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Called by the relay reader, the data already queued is still written
+    public void close() {
+        context.requestClose();
+        LockSupport.unpark(thread);
+    }
+
+    // Called once the session got send credits back
+    public void resumeRead() {
+        LockSupport.unpark(readerThread);
+    }
+
+    @Override
+    public void run() {
+        SocketChannel connected;
+        try {
+            connected = connect();
+        } catch (IOException e) {
+            finished = true;
+            failConnect(e);
+            return;
+        }
+        channel = connected;
+
+        try {
+            if (context.isCloseRequested()) {
+                // the client is gone, it gets no reply and only its early data is written
+                context.releaseConnectBytes();
+                writeDestination();
+                return;
+            }
+
+            byte[] connectBytes = context.getConnectBytes();
+            connectBytes[1] = 0;
+            handler.sendBack(ByteBuffer.wrap(connectBytes), context);
+            context.releaseConnectBytes();
+            context.open();
+            RelayMetrics.recordConnect(ReplyCode.SOCKS5.SUCCEEDED, System.nanoTime() - context.getConnectStartedAt());
+            Log.info(context.getClientID(), "CONNECT", "replied connect success to {}: {} bytes",
+                    connected.socket().getInetAddress().getHostAddress(), connectBytes.length);
+
+            // the early data queued while connecting is the first thing the writer sends
+            lastActivity = System.nanoTime();
+            readerThread = Thread.ofVirtual().name("session-reader-" + context.getClientID()).unstarted(this::readDestination);
+            readerThread.start();
+            writeDestination();
+        } finally {
+            finished = true;
+            context.markClosed();
+            closeChannel();
+            // a reader waiting for credits sees the channel closed
+            LockSupport.unpark(readerThread);
+            context.releasePendingWrites();
+        }
+    }
+
+    /* Tries the addresses one after the other within the connect timeout. A blocking connect
+    *  cannot be raced without a thread per attempt, the addresses are already interleaved by family */
+    private SocketChannel connect() throws IOException {
+        long deadline = context.getConnectStartedAt() + RelayConfig.CONNECT_TIMEOUT_MS * 1_000_000L;
+        IOException failure = null;
+        for (InetSocketAddress candidate : candidates) {
+            int remainingMillis = (int) ((deadline - System.nanoTime()) / 1_000_000L);
+            if (remainingMillis <= 0) {
+                break;
+            }
+            SocketChannel attempt = SocketChannel.open();
+            try {
+                attempt.socket().setTcpNoDelay(true);
+                attempt.socket().connect(candidate, remainingMillis);
+                return attempt;
+            } catch (IOException e) {
+                attempt.close();
+                failure = e;
+            }
+        }
+        throw failure instanceof SocketTimeoutException || failure == null
+                ? new SocketTimeoutException("timed out after " + RelayConfig.CONNECT_TIMEOUT_MS + " ms")
+                : failure;
+    }
+
+    private void failConnect(IOException e) {
+        Log.error(context.getClientID(), "CONNECT-ERROR", "failed to connect to forward server: {}", e.getMessage());
+        ReplyCode.SOCKS5 outcome = e instanceof SocketTimeoutException
+                ? ReplyCode.SOCKS5.TTL_EXPIRED
+                : Reactor.replyCodeFor(e);
+        RelayMetrics.recordConnect(outcome, System.nanoTime() - context.getConnectStartedAt());
+        context.markClosed();
+        context.releasePendingWrites();
+        handler.sendBackFailure(context, outcome);
+    }
+
+    /* Writes the queued data until the client closes the session, the destination goes away or the
+    *  session is idle for IDLE_TIMEOUT_SECONDS. A closed session writes what is still queued for up
+    *  to LINGER_MS, then shuts the destination output down so it reads the end of the stream right
+    *  after the last byte */
+    private void writeDestination() {
+        long idleTimeout = RelayConfig.IDLE_TIMEOUT_SECONDS * 1_000_000_000L;
+        long lingerDeadline = 0;
+
+        while (channel.isOpen()) {
+            if (lingerDeadline == 0 && context.isCloseRequested()) {
+                lingerDeadline = System.nanoTime() + RelayConfig.LINGER_MS * 1_000_000L;
+            }
+
+            PooledBuffer pending = context.peekWrite();
+            if (pending != null) {
+                if (lingerDeadline != 0 && System.nanoTime() - lingerDeadline >= 0) {
+                    Log.info(context.getClientID(), "CLOSE", "linger expired, dropping {} bytes", context.getPendingWriteBytes());
+                    return;
+                }
+                try {
+                    int written = channel.write(pending.buffer());
+                    context.releasePendingBytes(written);
+                } catch (IOException e) {
+                    if (!context.isCloseRequested()) {
+                        Log.error(context.getClientID(), "FORWARD-ERROR", "error forwarding message: {}", e.getMessage());
+                        handler.sendBackClose(context);
+                    }
+                    return;
+                }
+                lastActivity = System.nanoTime();
+                if (!pending.buffer().hasRemaining()) {
+                    RelayMetrics.DOWNLINK_WRITE_LATENCY.record(lastActivity - pending.getTimestamp());
+                    context.completeWrite();
+                }
+                continue;
+            }
+
+            if (context.isCloseRequested()) {
+                context.halfClose();
+                try {
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // closed by run all the same
+                }
+                return;
+            }
+
+            long idle = System.nanoTime() - lastActivity;
+            if (idle >= idleTimeout) {
+                Log.info(context.getClientID(), "IDLE", "closing session idle for {} s", idle / 1_000_000_000L);
+                handler.sendBackClose(context);
+                return;
+            }
+            LockSupport.parkNanos(this, idleTimeout - idle);
+        }
+    }
+
+    /* Runs on the reader thread until the destination or the session is closed, see ReadSizer.
+    *  Without the send credits for its next read, the thread parks until the uplink scheduler has
+    *  given back RESUME_CREDITS. The end of the
+    *  destination's stream half closes the session: the relay is told and the session thread
+    *  writes what the client had already sent before closing the channel */
+    private void readDestination() {
+        ReadSizer readSizer = context.getReadSizer();
+        PooledBuffer data = null;
+        try {
+            while (true) {
+                if (!context.hasReadCredits(readSizer.size())) {
+                    if (context.pauseRead()) {
+                        RelayMetrics.UPLINK_READ_PAUSES.increment();
+                        while (context.isReadPaused() && channel.isOpen()) {
+                            LockSupport.park(this);
+                        }
+                        if (!channel.isOpen()) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                int readSize = Math.min(readSizer.size(), context.getUplinkCredits());
+                data = bufferPool.allocate(readSize);
+                ByteBuffer buffer = data.buffer();
+                buffer.limit(readSize);
+                int bytesRead = channel.read(buffer);
+                if (bytesRead < 0) {
+                    if (context.halfClose()) {
+                        Log.info(context.getClientID(), "REPLY", "server connection was closed");
+                        handler.sendBackClose(context);
+                        context.requestClose();
+                        LockSupport.unpark(thread);
+                    }
+                    return;
+                }
+                buffer.flip();
+                lastActivity = System.nanoTime();
+                readSizer.record(bytesRead, readSize);
+                handler.sendBack(data, context);
+                data = null;
+                if (Log.isDebugEnabled()) {
+                    Log.debug(context.getClientID(), "REPLY", "replied to client {} bytes", bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            // the session thread closed the channel, or the destination reset it
+            if (channel.isOpen() && !context.isCloseRequested()) {
+                Log.error(context.getClientID(), "REPLY-ERROR", "failed to reply to client: {}", e.getMessage());
+                handler.sendBackClose(context);
+            }
+            closeChannel();
+        } finally {
+            if (data != null) {
+                data.release();
+            }
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error(context.getClientID(), "CLOSE-ERROR", "error closing socket channel: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package relay.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the domain names of the SOCKS 5 requests on its own threads, so a slow lookup does not
+ * hold up the relay reader.
+ * <p>
+ * Answers are kept in a bounded LRU cache, successful ones for the positive TTL and failed ones
+ * for the negative TTL. Concurrent requests for a name that is already being looked up share the
+ * pending lookup, so a burst of CONNECTs to the same host costs a single query.
+ */
+public final class DnsResolver {
+
+    private final ExecutorService executor;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+
+    private final Map<String, CacheEntry> cache;
+    private final Map<String, CompletableFuture<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+
+    public DnsResolver(int threads, final int cacheSize, int positiveTtlSeconds, int negativeTtlSeconds) {
+        this.positiveTtlNanos = positiveTtlSeconds * 1_000_000_000L;
+        this.negativeTtlNanos = negativeTtlSeconds * 1_000_000_000L;
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread t = new Thread(runnable, "dns-resolver-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Looks up the addresses of a host. Cached answers complete the returned future before the
+     * method returns, on the calling thread.
+     *
+     * @param host - the domain name from the SOCKS 5 request
+     * @return the addresses of the host, or an {@link UnknownHostException} failure, or the
+     *         exception of a lookup that could not be made
+     */
+    public CompletableFuture<InetAddress[]> resolve(String host) {
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(host);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                cache.remove(host);
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            return entry.addresses != null
+                    ? CompletableFuture.completedFuture(entry.addresses)
+                    : CompletableFuture.failedFuture(new UnknownHostException(host));
+        }
+
+        CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> pending = inFlight.putIfAbsent(host, lookup);
+        if (pending != null) {
+            return pending;
+        }
+
+        try {
+            executor.execute(() -> lookup(host, lookup));
+        } catch (RejectedExecutionException ree) {
+            inFlight.remove(host);
+            lookup.completeExceptionally(ree);
+        }
+        return lookup;
+    }
+
+    // Any failure completes the lookup, a pending one would hold every later request for the host
+    private void lookup(String host, CompletableFuture<InetAddress[]> lookup) {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            cache(host, addresses, positiveTtlNanos);
+            lookup.complete(addresses);
+        } catch (UnknownHostException uhe) {
+            cache(host, null, negativeTtlNanos);
+            lookup.completeExceptionally(uhe);
+        } catch (Throwable t) {
+            // not an answer of the name service, the next request looks the host up again
+            lookup.completeExceptionally(t);
+        } finally {
+            inFlight.remove(host);
+        }
+    }
+
+    private void cache(String host, InetAddress[] addresses, long ttl) {
+        if (ttl > 0) {
+            synchronized (cache) {
+                cache.put(host, new CacheEntry(addresses, System.nanoTime() + ttl));
+            }
+        }
+    }
+
+    private static final class CacheEntry {
+        private final InetAddress[] addresses; // null for a failed lookup
+        private final long expiresAt;
+
+        private CacheEntry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
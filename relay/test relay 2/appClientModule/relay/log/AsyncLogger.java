@@ -0,0 +1,209 @@
+package relay.log;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger that hands its lines to a background thread through a bounded ring of preallocated
+ * entries. Any number of threads can log: a producer claims a slot with a CAS on the tail, fills it
+ * in and publishes it, the writer thread formats the published entries in order and writes them in
+ * batches. Nothing is formatted and no lock is taken on the logging thread.
+ * <p>
+ * When the ring is full the line is dropped and counted rather than blocking the caller, the number
+ * of dropped lines is reported in the output as soon as the writer catches up.
+ */
+public final class AsyncLogger implements Runnable {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Level level;
+    private final Entry[] ring;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();    // next slot to claim
+    private final AtomicLong head = new AtomicLong();    // next slot to write
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+
+    private final Writer out = writer(FileDescriptor.out);
+    private final Writer err = writer(FileDescriptor.err);
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param level - lines below this level are discarded by the caller
+     * @param capacity - number of entries of the ring, rounded up to a power of two
+     */
+    public AsyncLogger(Level level, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.level = level;
+        this.ring = new Entry[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry(i - size);
+        }
+
+        this.thread = new Thread(this, "relay-logger");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Queues a line formatted as "[clientID]-TAG message" by the writer thread. Every "{}" of the
+     * message is replaced by the next argument.
+     *
+     * @param clientID - the session the line is about, or null
+     * @param tag - the event, or null
+     */
+    public void log(Level lineLevel, String clientID, String tag, String message, Object arg1, Object arg2) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) (sequence & mask)];
+        entry.level = lineLevel;
+        entry.clientID = clientID;
+        entry.tag = tag;
+        entry.message = message;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.published = sequence;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Writes what is left in the ring and stops the writer thread
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain();
+    }
+
+    // Writes the published entries, returns how many were written
+    private int drain() {
+        long next = head.get();
+        int count = 0;
+        boolean wroteOut = false;
+        boolean wroteErr = false;
+
+        try {
+            Entry entry;
+            while ((entry = ring[(int) (next & mask)]).published == next) {
+                Writer writer = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                format(entry);
+                writer.append(line);
+                wroteOut |= writer == out;
+                wroteErr |= writer == err;
+
+                entry.clientID = null;
+                entry.tag = null;
+                entry.message = null;
+                entry.arg1 = null;
+                entry.arg2 = null;
+                head.lazySet(++next);
+                count++;
+            }
+
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                err.append("[]-LOG dropped ").append(Long.toString(droppedNow - reportedDropped)).append(" lines\n");
+                reportedDropped = droppedNow;
+                wroteErr = true;
+            }
+
+            if (wroteOut) {
+                out.flush();
+            }
+            if (wroteErr) {
+                err.flush();
+            }
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        line.setLength(0);
+        if (entry.clientID != null) {
+            line.append('[').append(entry.clientID).append(']');
+        }
+        if (entry.tag != null) {
+            line.append('-').append(entry.tag);
+        }
+        if (line.length() > 0) {
+            line.append(' ');
+        }
+
+        String message = entry.message;
+        int from = 0;
+        for (int argIndex = 0; argIndex < 2; argIndex++) {
+            int placeholder = message.indexOf("{}", from);
+            if (placeholder < 0) {
+                break;
+            }
+            line.append(message, from, placeholder).append(argIndex == 0 ? entry.arg1 : entry.arg2);
+            from = placeholder + 2;
+        }
+        line.append(message, from, message.length()).append('\n');
+    }
+
+    private static Writer writer(FileDescriptor fd) {
+        return new OutputStreamWriter(new FileOutputStream(fd), StandardCharsets.UTF_8);
+    }
+
+    // A slot of the ring, published once its sequence is written
+    private static final class Entry {
+        private volatile long published;
+        private Level level;
+        private String clientID;
+        private String tag;
+        private String message;
+        private Object arg1;
+        private Object arg2;
+
+        private Entry(long published) {
+            this.published = published;
+        }
+    }
+}
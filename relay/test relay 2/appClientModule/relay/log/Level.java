@@ -0,0 +1,18 @@
+package relay.log;
+
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF;
+
+    public static Level parse(String name) {
+        for (Level level : values()) {
+            if (level.name().equalsIgnoreCase(name)) {
+                return level;
+            }
+        }
+        return INFO;
+    }
+}
@@ -0,0 +1,81 @@
+package relay.log;
+
+import relay.RelayConfig;
+
+/**
+ * Node-wide entry point to the {@link AsyncLogger}. Lines are formatted as "[clientID]-TAG message"
+ * on the logger thread, arguments replace the "{}" of the message in order.
+ * <p>
+ * Debug lines are discarded before anything is queued; callers that would have to build an
+ * argument only for a debug line check {@link #isDebugEnabled()} first.
+ */
+public final class Log {
+
+    private static final AsyncLogger LOGGER = new AsyncLogger(Level.parse(RelayConfig.LOG_LEVEL), RelayConfig.LOG_BUFFER_SIZE);
+
+    static {
+        LOGGER.start();
+        // the node leaves through System.exit on fatal errors, the last lines explain why
+        Runtime.getRuntime().addShutdownHook(new Thread(LOGGER::stop, "relay-logger-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return LOGGER.isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String clientID, String tag, String message) {
+        LOGGER.log(Level.DEBUG, clientID, tag, message, null, null);
+    }
+
+    public static void debug(String clientID, String tag, String message, Object arg) {
+        LOGGER.log(Level.DEBUG, clientID, tag, message, arg, null);
+    }
+
+    public static void debug(String clientID, String tag, String message, Object arg1, Object arg2) {
+        LOGGER.log(Level.DEBUG, clientID, tag, message, arg1, arg2);
+    }
+
+    public static void info(String clientID, String tag, String message) {
+        LOGGER.log(Level.INFO, clientID, tag, message, null, null);
+    }
+
+    public static void info(String clientID, String tag, String message, Object arg) {
+        LOGGER.log(Level.INFO, clientID, tag, message, arg, null);
+    }
+
+    public static void info(String clientID, String tag, String message, Object arg1, Object arg2) {
+        LOGGER.log(Level.INFO, clientID, tag, message, arg1, arg2);
+    }
+
+    public static void warn(String clientID, String tag, String message) {
+        LOGGER.log(Level.WARN, clientID, tag, message, null, null);
+    }
+
+    public static void warn(String clientID, String tag, String message, Object arg) {
+        LOGGER.log(Level.WARN, clientID, tag, message, arg, null);
+    }
+
+    public static void warn(String clientID, String tag, String message, Object arg1, Object arg2) {
+        LOGGER.log(Level.WARN, clientID, tag, message, arg1, arg2);
+    }
+
+    public static void error(String clientID, String tag, String message) {
+        LOGGER.log(Level.ERROR, clientID, tag, message, null, null);
+    }
+
+    public static void error(String clientID, String tag, String message, Object arg) {
+        LOGGER.log(Level.ERROR, clientID, tag, message, arg, null);
+    }
+
+    public static void error(String clientID, String tag, String message, Object arg1, Object arg2) {
+        LOGGER.log(Level.ERROR, clientID, tag, message, arg1, arg2);
+    }
+
+    // Lines lost because the ring was full
+    public static long getDropped() {
+        return LOGGER.getDropped();
+    }
+}
@@ -0,0 +1,64 @@
+package relay.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import relay.log.Log;
+
+/**
+ * Writes a snapshot of the registry to a file at a fixed interval. The snapshot is written to a
+ * temporary file first and moved over the previous one, so readers never see a partial dump.
+ */
+public final class MetricsReporter implements Runnable {
+
+    private final MetricsRegistry registry;
+    private final Path file;
+    private final long intervalMillis;
+
+    public MetricsReporter(MetricsRegistry registry, Path file, int intervalSeconds) {
+        this.registry = registry;
+        this.file = file;
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "relay-metrics-reporter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                dump();
+            } catch (IOException e) {
+                Log.warn("", "METRICS", "failed to write {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    public void dump() throws IOException {
+        StringBuilder text = new StringBuilder(4096);
+        text.append("# ").append(Instant.now()).append('\n');
+        for (Map.Entry<String, Long> metric : registry.snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,136 @@
+package relay.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+import relay.RelayConfig;
+import relay.buffer.BufferPool;
+import relay.log.Log;
+import relay.protocol.ReplyCode;
+
+/**
+ * The metrics of the node. Downlink is the direction from the relay to the destination servers,
+ * uplink the direction back to the relay. Latencies are recorded in nanoseconds.
+ */
+public final class RelayMetrics {
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Counter DOWNLINK_FRAMES = REGISTRY.counter("downlink.frames");
+    public static final Counter DOWNLINK_BYTES = REGISTRY.counter("downlink.bytes");
+    // Payload bytes received before the session's destination was connected
+    public static final Counter EARLY_DATA_BYTES = REGISTRY.counter("downlink.earlyData.bytes");
+    public static final Counter UPLINK_FRAMES = REGISTRY.counter("uplink.frames");
+    public static final Counter UPLINK_BYTES = REGISTRY.counter("uplink.bytes");
+    // Payload size of the frames sent back, which follows the adaptive destination read size
+    public static final Histogram UPLINK_FRAME_SIZE = REGISTRY.histogram("uplink.frame.bytes");
+    /* Uplink compression, when the relay link negotiated it: the data bytes of the frames and the
+    *  bytes they took on the link, the frames deflated or sent raw, and the time spent per frame */
+    public static final Counter COMPRESSION_BYTES_IN = REGISTRY.counter("uplink.compression.inBytes");
+    public static final Counter COMPRESSION_BYTES_OUT = REGISTRY.counter("uplink.compression.outBytes");
+    public static final Counter COMPRESSION_DEFLATED = REGISTRY.counter("uplink.compression.deflatedFrames");
+    public static final Counter COMPRESSION_RAW = REGISTRY.counter("uplink.compression.rawFrames");
+    public static final Histogram COMPRESSION_TIME = REGISTRY.histogram("uplink.compression.nanos");
+    // Destination reads stopped because the session ran out of send credits
+    public static final Counter UPLINK_READ_PAUSES = REGISTRY.counter("uplink.readPauses");
+    // Link capacity checks that found the uplink ring of a socket link full
+    public static final Counter UPLINK_RING_FULL = REGISTRY.counter("uplink.ringFull");
+
+    // Datagrams of the UDP ASSOCIATE sessions sent to their destinations, received back, and dropped
+    public static final Counter UDP_DATAGRAMS_OUT = REGISTRY.counter("udp.datagrams.out");
+    public static final Counter UDP_DATAGRAMS_IN = REGISTRY.counter("udp.datagrams.in");
+    public static final Counter UDP_DROPPED = REGISTRY.counter("udp.dropped");
+
+    // Relay links lost, each one is reconnected and its sessions are closed
+    public static final Counter RELAY_LINK_FAILURES = REGISTRY.counter("relay.linkFailures");
+    // From a relay link failing to its replacement being connected
+    public static final Histogram RELAY_RECONNECT = REGISTRY.histogram("relay.reconnect.nanos");
+
+    public static final Counter SOCKS5_REQUESTS = REGISTRY.counter("socks5.requests");
+    public static final Counter CONNECT_SUCCESS = REGISTRY.counter("connect.success");
+    public static final Counter CONNECT_FAILURE = REGISTRY.counter("connect.failure");
+
+    // Time a reactor spends handling the events of one select, the blocking select excluded
+    public static final Histogram REACTOR_LOOP = REGISTRY.histogram("reactor.loop.nanos");
+    // From the relay frame being received to its payload being fully written to the destination
+    public static final Histogram DOWNLINK_WRITE_LATENCY = REGISTRY.histogram("downlink.frameToWrite.nanos");
+    // From the destination data being handed to the relay link to the link writing it out
+    public static final Histogram UPLINK_FLUSH_LATENCY = REGISTRY.histogram("uplink.readToFlush.nanos");
+
+    private static final Map<ReplyCode.SOCKS5, Counter> CONNECT_OUTCOMES = new EnumMap<>(ReplyCode.SOCKS5.class);
+    private static final Map<ReplyCode.SOCKS5, Histogram> CONNECT_LATENCY = new EnumMap<>(ReplyCode.SOCKS5.class);
+
+    static {
+        for (ReplyCode.SOCKS5 outcome : ReplyCode.SOCKS5.values()) {
+            CONNECT_OUTCOMES.put(outcome, REGISTRY.counter("connect.outcome." + outcome));
+            CONNECT_LATENCY.put(outcome, REGISTRY.histogram("connect.latency." + outcome + ".nanos"));
+        }
+    }
+
+    private static boolean started;
+
+    private RelayMetrics() {
+    }
+
+    // A connection attempt that ended with the given reply to the client
+    public static void recordConnect(ReplyCode.SOCKS5 outcome, long latencyNanos) {
+        countOutcome(outcome);
+        CONNECT_LATENCY.get(outcome).record(latencyNanos);
+    }
+
+    // A request refused before any connection attempt
+    public static void recordRejected(ReplyCode.SOCKS5 outcome) {
+        countOutcome(outcome);
+    }
+
+    /**
+     * Registers the gauges of the node, exports the registry over JMX and starts the periodic
+     * dump to {@link RelayConfig#METRICS_FILE}. Only the first call has an effect.
+     */
+    public static synchronized void start(LongSupplier activeSessions, BufferPool bufferPool) {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        REGISTRY.gauge("sessions.active", activeSessions);
+        REGISTRY.gauge("bufferPool.hits", bufferPool::getHits);
+        REGISTRY.gauge("bufferPool.misses", bufferPool::getMisses);
+        REGISTRY.gauge("bufferPool.inUse", bufferPool::getInUse);
+        REGISTRY.gauge("bufferPool.pooledBytes", bufferPool::getPooledBytes);
+        REGISTRY.gauge("log.dropped", Log::getDropped);
+        // link bytes per 1000 data bytes of the compressed links
+        REGISTRY.gauge("uplink.compression.ratioPermille", () -> {
+            long in = COMPRESSION_BYTES_IN.get();
+            return in == 0 ? 0 : COMPRESSION_BYTES_OUT.get() * 1000 / in;
+        });
+
+        if (RelayConfig.METRICS_JMX) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(REGISTRY),
+                        new ObjectName("relay:type=Metrics"));
+            } catch (Exception e) {
+                Log.warn("", "METRICS", "failed to register the JMX bean: {}", e.getMessage());
+            }
+        }
+
+        if (!RelayConfig.METRICS_FILE.isEmpty() && RelayConfig.METRICS_INTERVAL_SECONDS > 0) {
+            new MetricsReporter(REGISTRY, Paths.get(RelayConfig.METRICS_FILE),
+                    RelayConfig.METRICS_INTERVAL_SECONDS).start();
+        }
+    }
+
+    private static void countOutcome(ReplyCode.SOCKS5 outcome) {
+        CONNECT_OUTCOMES.get(outcome).increment();
+        if (outcome == ReplyCode.SOCKS5.SUCCEEDED) {
+            CONNECT_SUCCESS.increment();
+        } else {
+            CONNECT_FAILURE.increment();
+        }
+    }
+}
@@ -1,98 +1,199 @@
 package relay.protocol;
 
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import relay.exception.Socks5Exception;
+import java.nio.ByteBuffer;
+
+import relay.metrics.RelayMetrics;
 
 public class Socks5 {
 
+    // VER, CMD, RSV, ATYP, a length byte and a 255 bytes domain name, DST.PORT
+    public static final int MAX_REQUEST_SIZE = 4 + 1 + 255 + 2;
+
+    public enum ParseResult {
+        COMPLETE,
+        // the frame ends inside the request, the parse starts over once the rest has arrived
+        NEED_MORE_DATA,
+        // the reason and the reply code are on the request
+        INVALID
+    }
+
     /**
      * This method evaluates a SOCKS 5 request as described at
      * <a href="https://datatracker.ietf.org/doc/html/rfc1928#section-4">https://datatracker.ietf.org/doc/html/rfc1928</a>,
      * section 4 and section 5. Section 3 is already handled on the relay server for efficiency
      * and security purposes (username and password can be provided by the SOCKS client).
+     * <p>
+     * The fields are read at their offset from the frame position and checked against the frame
+     * length before they are read, nothing is allocated. A complete request moves the position
+     * past it, the bytes left in the frame are the first data of the session.
      *
-     * @param packet - the byte array that contains a socks 5 request
-     * @return the {@link InetSocketAddress} of the destination extracted from the socks 5 request
-     * @throws Socks5Exception - wrong socks 5 request payload
+     * @param frame - the bytes received for the session, starting with the request
+     * @param request - receives the decoded request, or the reason it is invalid
+     * @return whether the request is complete, truncated or invalid
      */
-    public static InetSocketAddress evaluateRequest(byte[] packet) throws Socks5Exception {
-        // Tracks the current position in the byte array (packet data)
-        int index = 0;
+    public static ParseResult evaluateRequest(ByteBuffer frame, Socks5Request request) {
+        ParseResult result = parseRequest(frame, request);
+        if (result != ParseResult.NEED_MORE_DATA) {
+            RelayMetrics.SOCKS5_REQUESTS.increment();
+        }
+        if (result == ParseResult.INVALID) {
+            // refused before any connection attempt, counted with the connect outcomes
+            RelayMetrics.recordRejected(request.getFailure());
+        }
+        return result;
+    }
 
-        // VER byte - SOCKS version is the 1st byte in the packet data
-        // will skip it, as this point is already reached as a consequence of it being 0x05
-        index++;
+    /**
+     * Builds the reply to a request that failed, as described in section 6 of RFC 1928. The bound
+     * address of a failed request is meaningless, it is sent as the IPv4 address 0.0.0.0:0.
+     *
+     * @param replyCode - the reason of the failure
+     * @return the reply, to be sent back to the client before closing the session
+     */
+    public static byte[] failureReply(ReplyCode.SOCKS5 replyCode) {
+        return new byte[]{ Protocol.SOCKS5.toByte(), replyCode.toByte(), 0x00,
+                AddressType.IP_V4.toByte(), 0, 0, 0, 0, 0, 0 };
+    }
 
-        // CMD byte - SOCKS command is the 2nd byte in the packet data
-        Command socksCommand = Command.valueOf(packet[index++]);
+    /**
+     * Builds the reply to an accepted UDP ASSOCIATE request. The datagrams are carried in the relay
+     * frames of the session, the bound address is the wildcard address and the port of the
+     * session's datagram channel.
+     *
+     * @param port - the local port of the session's datagram channel
+     * @return the reply, to be sent back to the client
+     */
+    public static byte[] associateReply(int port) {
+        return new byte[]{ Protocol.SOCKS5.toByte(), ReplyCode.SOCKS5.SUCCEEDED.toByte(), 0x00,
+                AddressType.IP_V4.toByte(), 0, 0, 0, 0, (byte) (port >> 8), (byte) port };
+    }
 
-        // Currently only supporting CONNECT command
-        if (!socksCommand.equals(Command.CONNECT)) {
-            throw new Socks5Exception("Unknown command", ReplyCode.SOCKS5.COMMAND_NOT_SUPPORTED);
-        }
+    /**
+     * Decodes the header of a UDP request, section 7 of RFC 1928, which starts every frame of a UDP
+     * ASSOCIATE session. Fragments are not reassembled, a fragmented datagram is invalid.
+     *
+     * @param frame - the frame, its position is moved to the datagram data when the header is complete
+     * @param request - receives the destination of the datagram
+     * @return COMPLETE, or NEED_MORE_DATA and INVALID for a datagram that has to be dropped
+     */
+    public static ParseResult evaluateDatagram(ByteBuffer frame, Socks5Request request) {
+        request.clear();
+        int start = frame.position();
 
-        // RSV byte - the reserved byte is the 3rd byte in the packet data
-        // needs to be skipped
-        index++;
+        // RSV (2 bytes), FRAG and ATYP bytes
+        if (frame.remaining() < 4) {
+            return ParseResult.NEED_MORE_DATA;
+        }
+        if (frame.get(start + 2) != 0) {
+            return reject(request, "Fragmented datagram", ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE);
+        }
+        return parseAddress(frame, start, Command.UDP_ASSOCIATE, request);
+    }
 
-        // ATYP byte - the address type byte is the 4th byte in the packet data
-        AddressType addressType = AddressType.valueOf(packet[index++]);
+    // The size of the UDP request header carrying a datagram from the source address
+    public static int datagramHeaderSize(InetAddress source) {
+        return source instanceof Inet4Address ? 4 + 4 + 2 : 4 + 16 + 2;
+    }
 
-        // Address type validation
-        if(addressType.equals(AddressType.UNKNOWN) || addressType.equals(AddressType.IP_V6)) {
-            throw new Socks5Exception("Address type not supported",
-                    ReplyCode.SOCKS5.ADDRESS_TYPE_NOT_SUPPORTED);
-        }
+    /**
+     * Writes the UDP request header of a datagram sent back to the client.
+     *
+     * @param buffer - receives the header
+     * @param index - where the header starts, followed by {@link #datagramHeaderSize(InetAddress)} bytes
+     * @param source - the address the datagram came from
+     */
+    public static void putDatagramHeader(ByteBuffer buffer, int index, InetSocketAddress source) {
+        InetAddress address = source.getAddress();
+        buffer.putShort(index, (short) 0);
+        buffer.put(index + 2, (byte) 0);
+        buffer.put(index + 3, address instanceof Inet4Address ? AddressType.IP_V4.toByte() : AddressType.IP_V6.toByte());
+        byte[] addressBytes = address.getAddress();
+        buffer.put(index + 4, addressBytes);
+        buffer.putShort(index + 4 + addressBytes.length, (short) source.getPort());
+    }
 
-        // Determine the address size based on the address type
-        int destinationAddressSize = addressType.getSize();
+    private static ParseResult parseRequest(ByteBuffer frame, Socks5Request request) {
+        request.clear();
+        int start = frame.position();
 
-        // If the address type is domain name, the first of the address byte defines the length
-        if (addressType.equals(AddressType.DOMAINNAME)) {
-            destinationAddressSize = packet[index++];
+        // VER, CMD, RSV and ATYP bytes
+        if (frame.remaining() < 4) {
+            return ParseResult.NEED_MORE_DATA;
+        }
+        if (frame.get(start) != Protocol.SOCKS5.toByte()) {
+            return reject(request, "Unsupported version", ReplyCode.SOCKS5.GENERAL_SOCKS_SERVER_FAILURE);
         }
 
-        // DST.ADDR bytes - the destination address bytes begin with the 5th byte
-        byte[] destinationAddressBytes = new byte[destinationAddressSize];
-
-        // Retrieve the destination address from the packet
-        for (int i = 0; i < destinationAddressSize; i++) {
-            destinationAddressBytes[i] = packet[index++];
+        // Currently supporting the CONNECT and UDP ASSOCIATE commands
+        Command command = Command.valueOf(frame.get(start + 1));
+        if (command != Command.CONNECT && command != Command.UDP_ASSOCIATE) {
+            return reject(request, "Unknown command", ReplyCode.SOCKS5.COMMAND_NOT_SUPPORTED);
         }
 
-        // Convert destination address to string
-        String destinationAddress = addressToString(addressType,
-                destinationAddressBytes,
-                destinationAddressSize);
+        // RSV is not checked, clients that do not zero it are still served
+        return parseAddress(frame, start, command, request);
+    }
 
-        // DST.PORT bytes - the destination port bytes are the next 2 bytes after DST.ADDR
-        byte[] destinationPortBytes = new byte[2];
-        destinationPortBytes[0] = packet[index++];
-        destinationPortBytes[1] = packet[index];
+    /* Decodes ATYP, DST.ADDR and DST.PORT, which end the request and the UDP request header alike,
+    *  the ATYP byte is the 4th byte from the start of both */
+    private static ParseResult parseAddress(ByteBuffer frame, int start, Command command, Socks5Request request) {
+        int available = frame.limit() - start;
+        AddressType addressType = AddressType.valueOf(frame.get(start + 3));
+        int addressOffset = 4;
+        int addressSize;
+        switch (addressType) {
+            case IP_V4:
+            case IP_V6:
+                addressSize = addressType.getSize();
+                break;
+            case DOMAINNAME:
+                // the first address byte is the length of the name, unsigned
+                if (available < 5) {
+                    return ParseResult.NEED_MORE_DATA;
+                }
+                addressSize = frame.get(start + 4) & 0xFF;
+                addressOffset = 5;
+                if (addressSize == 0) {
+                    return reject(request, "Empty domain name", ReplyCode.SOCKS5.HOST_UNREACHABLE);
+                }
+                break;
+            default:
+                return reject(request, "Address type not supported", ReplyCode.SOCKS5.ADDRESS_TYPE_NOT_SUPPORTED);
+        }
 
-        // Convert destination port (2 bytes) to an integer for the port
-        int destinationPort = ((destinationPortBytes[0] & 0xFF) << 8) |
-                (destinationPortBytes[1] & 0xFF);
+        // DST.ADDR followed by the 2 bytes of DST.PORT
+        int length = addressOffset + addressSize + 2;
+        if (available < length) {
+            return ParseResult.NEED_MORE_DATA;
+        }
+        byte[] address = request.addressBuffer();
+        frame.get(start + addressOffset, address, 0, addressSize);
+        if (addressType == AddressType.DOMAINNAME && !isHostName(address, addressSize)) {
+            return reject(request, "Invalid domain name", ReplyCode.SOCKS5.HOST_UNREACHABLE);
+        }
+        int port = ((frame.get(start + length - 2) & 0xFF) << 8) | (frame.get(start + length - 1) & 0xFF);
 
-        return new InetSocketAddress(destinationAddress, destinationPort);
+        request.set(command, addressType, addressSize, port, length);
+        frame.position(start + length);
+        return ParseResult.COMPLETE;
     }
 
-    private static  String addressToString(AddressType addressType,
-                                               byte[] destinationAddress,
-                                               int destinationAddressSize) throws Socks5Exception {
-
-        // Convert destination address bytes to string (either IP or domain)
-        if (addressType.equals(AddressType.IP_V4)) {
-            return (destinationAddress[0] & 0xFF) + "." +
-                    (destinationAddress[1] & 0xFF) + "." +
-                    (destinationAddress[2] & 0xFF) + "." +
-                    (destinationAddress[3] & 0xFF);
-        } else if (addressType.equals(AddressType.DOMAINNAME)) {
-            return new String(destinationAddress, 0, destinationAddressSize);
-        } else {
-            throw new Socks5Exception("Address type not supported",
-                    ReplyCode.SOCKS5.ADDRESS_TYPE_NOT_SUPPORTED);
+    // Printable ASCII without spaces, a name with anything else cannot be looked up
+    private static boolean isHostName(byte[] name, int length) {
+        for (int i = 0; i < length; i++) {
+            if (name[i] <= ' ' || name[i] >= 0x7F) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    private static ParseResult reject(Socks5Request request, String reason, ReplyCode.SOCKS5 replyCode) {
+        request.fail(reason, replyCode);
+        return ParseResult.INVALID;
     }
-}
\ No newline at end of file
+}
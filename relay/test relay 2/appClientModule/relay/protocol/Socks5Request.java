@@ -0,0 +1,99 @@
+package relay.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A SOCKS 5 request decoded by {@link Socks5#evaluateRequest(java.nio.ByteBuffer, Socks5Request)},
+ * or the destination of a UDP datagram decoded by
+ * {@link Socks5#evaluateDatagram(java.nio.ByteBuffer, Socks5Request)}.
+ * The object is reused for every request a relay reader decodes, so the fields are only valid
+ * until the next call; the destination address is only built by {@link #toSocketAddress()}, once
+ * the request is accepted.
+ */
+public final class Socks5Request {
+
+    // The longest address is a 255 bytes domain name
+    private final byte[] address = new byte[255];
+    private int addressLength;
+    private Command command;
+    private AddressType addressType;
+    private int port;
+    private int length;
+
+    private String failureReason;
+    private ReplyCode.SOCKS5 failure;
+
+    public Command getCommand() {
+        return this.command;
+    }
+
+    public AddressType getAddressType() {
+        return this.addressType;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    // The bytes the request takes in the frame
+    public int getLength() {
+        return this.length;
+    }
+
+    public String getFailureReason() {
+        return this.failureReason;
+    }
+
+    public ReplyCode.SOCKS5 getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * @return the destination of the request, left unresolved for domain names so the caller can
+     * look them up off the relay reader thread
+     */
+    public InetSocketAddress toSocketAddress() {
+        if (addressType == AddressType.DOMAINNAME) {
+            return InetSocketAddress.createUnresolved(
+                    new String(address, 0, addressLength, StandardCharsets.ISO_8859_1), port);
+        }
+        try {
+            // a literal address, never looked up
+            return new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOf(address, addressLength)), port);
+        } catch (UnknownHostException uhe) {
+            // only thrown for a length other than 4 or 16, which the parser does not accept
+            throw new IllegalStateException(uhe);
+        }
+    }
+
+    byte[] addressBuffer() {
+        return this.address;
+    }
+
+    void clear() {
+        this.command = null;
+        this.addressType = null;
+        this.addressLength = 0;
+        this.port = 0;
+        this.length = 0;
+        this.failureReason = null;
+        this.failure = null;
+    }
+
+    void set(Command command, AddressType addressType, int addressLength, int port, int length) {
+        this.command = command;
+        this.addressType = addressType;
+        this.addressLength = addressLength;
+        this.port = port;
+        this.length = length;
+    }
+
+    void fail(String reason, ReplyCode.SOCKS5 replyCode) {
+        this.failureReason = reason;
+        this.failure = replyCode;
+    }
+}
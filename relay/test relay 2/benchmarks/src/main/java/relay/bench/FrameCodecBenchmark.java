@@ -0,0 +1,147 @@
+package relay.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import relay.Utils;
+import relay.buffer.BufferPool;
+import relay.buffer.PooledBuffer;
+import relay.communication.FrameDecoder;
+import relay.communication.FrameEncoder;
+import relay.communication.SocketRelayLink;
+import relay.exception.RelayIOException;
+
+/**
+ * The relay framing in both directions, per frame. Decoding is measured the way the blocking
+ * relay reader does it (see RelayCommunicationHandler#readFromRelay) and the way the SSLEngine
+ * link does it, encoding through the frame encoder alone and through the socket link that
+ * RelayCommunicationHandler#sendBack writes to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Drelay.log.level=WARN", "-Drelay.metrics.intervalSeconds=0", "-Drelay.metrics.jmx=false" })
+@State(Scope.Benchmark)
+public class FrameCodecBenchmark {
+
+    private static final int FRAMES = 16;
+
+    @Param({ "64", "1024", "16384" })
+    public int payloadSize;
+
+    private final BufferPool bufferPool = new BufferPool(16L * 1024 * 1024);
+    private final byte[] idBytes = { 10, 0, 0, 42, (byte) 0xC3, 0x50 };
+
+    private ByteArrayInputStream encodedStream;
+    private ByteBuffer encodedBuffer;
+    private ByteBuffer payload;
+    private ByteBuffer frameBuffer;
+    private SocketRelayLink socketLink;
+
+    // Reused by the stream decoder, as in the relay reader
+    private final byte[] readIdBytes = new byte[FrameEncoder.ID_SIZE];
+    private final byte[] lengthBytes = new byte[2];
+    private final byte[] data = new byte[FrameEncoder.MAX_PAYLOAD_SIZE];
+
+    private Blackhole blackhole;
+    private FrameDecoder frameDecoder;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        this.frameDecoder = new FrameDecoder(bufferPool, (id, framePayload) -> {
+            blackhole.consume(Utils.extractSessionID(id));
+            framePayload.release();
+        });
+
+        payload = ByteBuffer.allocateDirect(payloadSize);
+        frameBuffer = ByteBuffer.allocate(FRAMES * (FrameEncoder.HEADER_SIZE + payloadSize));
+        for (int i = 0; i < FRAMES; i++) {
+            FrameEncoder.encode(idBytes, payload.clear(), frameBuffer);
+        }
+        byte[] encodedFrames = frameBuffer.array().clone();
+        encodedStream = new ByteArrayInputStream(encodedFrames);
+        encodedBuffer = ByteBuffer.wrap(encodedFrames);
+
+        socketLink = new SocketRelayLink(new SinkSocket());
+        socketLink.start(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        socketLink.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeStream() throws RelayIOException {
+        ByteArrayInputStream inputStream = encodedStream;
+        inputStream.reset();
+        for (int i = 0; i < FRAMES; i++) {
+            Utils.readExactly(inputStream, readIdBytes, 6);
+            Utils.readExactly(inputStream, lengthBytes, 2);
+            int payloadLength = ((lengthBytes[0] & 0xFF) << 8) | (lengthBytes[1] & 0xFF);
+            Utils.readExactly(inputStream, data, payloadLength);
+
+            PooledBuffer framePayload = bufferPool.allocate(payloadLength);
+            framePayload.buffer().put(data, 0, payloadLength).flip();
+            blackhole.consume(Utils.extractSessionID(readIdBytes));
+            framePayload.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeBuffer() {
+        frameDecoder.decode(encodedBuffer.clear());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ByteBuffer encode() {
+        frameBuffer.clear();
+        for (int i = 0; i < FRAMES; i++) {
+            FrameEncoder.encode(idBytes, payload.clear(), frameBuffer);
+        }
+        return frameBuffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void sendFrame() throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            socketLink.sendFrame(idBytes, payload.clear());
+        }
+    }
+
+    // A relay socket that discards what the link writes
+    private static final class SinkSocket extends Socket {
+        private final OutputStream sink = OutputStream.nullOutputStream();
+
+        @Override
+        public OutputStream getOutputStream() {
+            return sink;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package relay.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import relay.communication.RelayCommunicationHandler;
+
+/**
+ * A full round trip through the node over loopback: the benchmark plays the relay, sends a frame
+ * to a session connected to a local echo server and waits for the echoed data to come back. The
+ * relay link is a plain socket, TLS is left out so the numbers show the node's own cost.
+ * <p>
+ * The uplink is coalesced with the node's default settings, so the round trip includes the flush
+ * deadline of relay.uplink.flushMicros.
+ * <p>
+ * Both session engines are measured, every engine runs in its own fork since the node reads its
+ * settings once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Drelay.log.level=WARN", "-Drelay.metrics.intervalSeconds=0", "-Drelay.metrics.jmx=false" })
+@State(Scope.Benchmark)
+public class LoopbackForwardBenchmark {
+
+    @Param({ "64", "1024", "16384" })
+    public int payloadSize;
+
+    @Param({ "nio", "virtual" })
+    public String engine;
+
+    private final byte[] idBytes = { 10, 0, 0, 1, 0, 40 };
+
+    private ServerSocket echoServer;
+    private ServerSocket relayServer;
+    private Socket relay;
+    private DataInputStream relayIn;
+    private OutputStream relayOut;
+
+    private byte[] frame;
+    private final byte[] header = new byte[8];
+    private final byte[] reply = new byte[0xFFFF];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // before any node class reads RelayConfig
+        System.setProperty("relay.engine", engine);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        echoServer = new ServerSocket(0, 50, loopback);
+        startEchoServer(echoServer);
+
+        relayServer = new ServerSocket(0, 50, loopback);
+        Socket nodeSide = new Socket(loopback, relayServer.getLocalPort());
+        nodeSide.setTcpNoDelay(true);
+        relay = relayServer.accept();
+        relay.setTcpNoDelay(true);
+        relayIn = new DataInputStream(relay.getInputStream());
+        relayOut = relay.getOutputStream();
+
+        Thread node = new Thread(new RelayCommunicationHandler(nodeSide), "node");
+        node.setDaemon(true);
+        node.start();
+
+        // open the session with a SOCKS 5 CONNECT to the echo server and wait for its reply
+        int port = echoServer.getLocalPort();
+        writeFrame(new byte[]{ 5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port });
+        int replyLength = readFrame();
+        if (replyLength < 2 || reply[1] != 0) {
+            throw new IOException("session could not connect to the echo server");
+        }
+
+        frame = new byte[8 + payloadSize];
+        System.arraycopy(idBytes, 0, frame, 0, 6);
+        frame[6] = (byte) (payloadSize >> 8);
+        frame[7] = (byte) payloadSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // the relay connection stays open, the node exits when it loses the relay
+        relayServer.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        relayOut.write(frame);
+        relayOut.flush();
+
+        // the echo may come back split over several frames
+        int received = 0;
+        while (received < payloadSize) {
+            received += readFrame();
+        }
+        return received;
+    }
+
+    private void writeFrame(byte[] payload) throws IOException {
+        byte[] data = new byte[8 + payload.length];
+        System.arraycopy(idBytes, 0, data, 0, 6);
+        data[6] = (byte) (payload.length >> 8);
+        data[7] = (byte) payload.length;
+        System.arraycopy(payload, 0, data, 8, payload.length);
+        relayOut.write(data);
+        relayOut.flush();
+    }
+
+    private int readFrame() throws IOException {
+        relayIn.readFully(header);
+        int length = ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+        relayIn.readFully(reply, 0, length);
+        return length;
+    }
+
+    private static void startEchoServer(ServerSocket server) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread echo = new Thread(() -> echo(socket), "echo");
+                    echo.setDaemon(true);
+                    echo.start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }, "echo-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void echo(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package relay.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import relay.Utils;
+
+/**
+ * Session id handling done for every relay frame: packing the 6 id bytes into the session table
+ * key, and the ip:port form only built for log lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Drelay.log.level=WARN", "-Drelay.metrics.intervalSeconds=0", "-Drelay.metrics.jmx=false" })
+@State(Scope.Benchmark)
+public class SessionIdBenchmark {
+
+    private final byte[] idBytes = { 10, 0, 0, 42, (byte) 0xC3, 0x50 };
+    private final long sessionID = Utils.extractSessionID(idBytes);
+
+    @Benchmark
+    public long extractSessionID() {
+        return Utils.extractSessionID(idBytes);
+    }
+
+    @Benchmark
+    public String sessionIDToString() {
+        return Utils.sessionIDToString(sessionID);
+    }
+}
@@ -0,0 +1,61 @@
+package relay.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import relay.protocol.Socks5;
+import relay.protocol.Socks5Request;
+
+/**
+ * Parsing of the SOCKS 5 CONNECT request that opens every session, into a reused request as the
+ * relay readers do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Drelay.log.level=WARN", "-Drelay.metrics.intervalSeconds=0", "-Drelay.metrics.jmx=false" })
+@State(Scope.Benchmark)
+public class Socks5Benchmark {
+
+    // CONNECT 93.184.216.34:443
+    private final ByteBuffer ipv4Request = ByteBuffer.wrap(new byte[]{ 5, 1, 0, 1, 93, (byte) 184, (byte) 216, 34, 0x01, (byte) 0xBB });
+
+    // CONNECT www.example.com:443
+    private final ByteBuffer domainRequest = ByteBuffer.wrap(domainRequest("www.example.com", 443));
+
+    private final Socks5Request request = new Socks5Request();
+
+    @Benchmark
+    public Socks5.ParseResult ipv4() {
+        return Socks5.evaluateRequest(ipv4Request.position(0), request);
+    }
+
+    @Benchmark
+    public Socks5.ParseResult domain() {
+        return Socks5.evaluateRequest(domainRequest.position(0), request);
+    }
+
+    private static byte[] domainRequest(String host, int port) {
+        byte[] name = host.getBytes();
+        byte[] request = new byte[7 + name.length];
+        request[0] = 5;
+        request[1] = 1;
+        request[3] = 3;
+        request[4] = (byte) name.length;
+        System.arraycopy(name, 0, request, 5, name.length);
+        request[5 + name.length] = (byte) (port >> 8);
+        request[6 + name.length] = (byte) port;
+        return request;
+    }
+}
@@ -0,0 +1,79 @@
+package relay.loadtest;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local destination server for the sessions of the load test, one virtual thread per connection.
+ */
+public final class DestinationServer implements Closeable {
+
+    public enum Mode {
+        // writes back everything it reads
+        ECHO,
+        // discards what it reads
+        SINK,
+        // reads an 8 bytes size and writes that many bytes, a bulk download
+        DOWNLOAD
+    }
+
+    private final ServerSocket serverSocket;
+    private final Mode mode;
+
+    public DestinationServer(Mode mode) throws IOException {
+        this.serverSocket = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        this.mode = mode;
+        Thread.ofPlatform().daemon().name(mode.name().toLowerCase() + "-acceptor").start(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread.ofVirtual().start(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // server closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            if (mode == Mode.DOWNLOAD) {
+                long remaining = new DataInputStream(in).readLong();
+                while (remaining > 0) {
+                    int size = (int) Math.min(buffer.length, remaining);
+                    out.write(buffer, 0, size);
+                    remaining -= size;
+                }
+            }
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (mode == Mode.ECHO) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the node
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package relay.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Every recorded latency, kept exactly so the tail percentiles are not bucketed. Each session
+ * thread records into its own instance, the instances are merged for the report.
+ */
+public final class Latencies {
+
+    private long[] values = new long[256];
+    private int size;
+
+    public void record(long nanos) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = nanos;
+    }
+
+    public synchronized void merge(Latencies other) {
+        for (int i = 0; i < other.size; i++) {
+            record(other.values[i]);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Sorts the values, only called once every session is done
+    public synchronized String summary() {
+        if (size == 0) {
+            return "n/a";
+        }
+        Arrays.sort(values, 0, size);
+        return String.format("p50=%s p99=%s p999=%s max=%s", micros(percentile(50)), micros(percentile(99)),
+                micros(percentile(99.9)), micros(values[size - 1]));
+    }
+
+    private long percentile(double percentile) {
+        int rank = (int) Math.ceil(size * percentile / 100.0);
+        return values[Math.max(0, rank - 1)];
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.0fus", nanos / 1000.0);
+    }
+}
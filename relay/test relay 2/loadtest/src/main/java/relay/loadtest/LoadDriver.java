@@ -0,0 +1,347 @@
+package relay.loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import relay.RelayConfig;
+import relay.RelayConnectionStarter;
+
+/**
+ * End-to-end load test of the node without network access. Starts a {@link RelayEmulator} and a
+ * local {@link DestinationServer}, connects a node to the emulator (in this JVM unless
+ * --node=external) and runs synthetic SOCKS 5 sessions through it: CONNECT, a number of payload
+ * frames, close.
+ * <p>
+ * Options, as --name=value:
+ * <pre>
+ *   sessions     total sessions to run (10000)
+ *   concurrency  sessions running at the same time (1000)
+ *   messages     payload frames per session (10)
+ *   payload      bytes per payload frame, at most 65535 (1024)
+ *   mode         echo: wait for every frame to come back, sink: only send, download: the
+ *                destination sends messages x payload bytes in one go (echo)
+ *   node         in-process, or external to wait for a node started with Main 127.0.0.1 &lt;port&gt;
+ *   links        relay links an external node opens, an in-process node opens relay.links
+ *   timeout      seconds to wait for a reply before a session counts as failed (10)
+ *   pipeline     true to send the first payload frame right behind CONNECT instead of waiting for
+ *                the reply, as a client sending its TLS ClientHello early does (false)
+ *   reconnect    true to drop the relay links after the run and measure how long the node takes
+ *                to connect again and serve a session (false)
+ *   compression  true to accept the compressed frames a node started with relay.compression=deflate
+ *                offers, and report the bytes they took on the links (false)
+ *   content      random or text, what the payload frames hold; echo sessions send the same
+ *                bytes back, a download destination always sends zeros (random)
+ *   keystore     PKCS12 key store of the emulator, generated with keytool when missing
+ * </pre>
+ * The node settings (relay.link.mode, relay.reactors, ...) are the usual system properties.
+ */
+public class LoadDriver {
+
+    private static final String STORE_PASSWORD = "changeit";
+
+    private final int sessions;
+    private final int concurrency;
+    private final int messages;
+    private final int payloadSize;
+    private final DestinationServer.Mode mode;
+    private final long timeoutMillis;
+    private final int links;
+    private final boolean pipeline;
+    private final boolean reconnect;
+    private final boolean compression;
+    private final boolean textContent;
+
+    private final AtomicInteger nextSession = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Latencies connectLatencies = new Latencies();
+    private final Latencies roundTripLatencies = new Latencies();
+
+    private RelayEmulator emulator;
+    private int destinationPort;
+
+    private LoadDriver(Map<String, String> options) {
+        this.sessions = Integer.parseInt(options.getOrDefault("sessions", "10000"));
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1000"));
+        this.messages = Integer.parseInt(options.getOrDefault("messages", "10"));
+        this.payloadSize = Math.min(RelayEmulator.MAX_PAYLOAD_SIZE, Integer.parseInt(options.getOrDefault("payload", "1024")));
+        this.mode = DestinationServer.Mode.valueOf(options.getOrDefault("mode", "echo").toUpperCase());
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(Integer.parseInt(options.getOrDefault("timeout", "10")));
+        this.links = "external".equalsIgnoreCase(options.get("node"))
+                ? Integer.parseInt(options.getOrDefault("links", "1")) : RelayConfig.RELAY_LINKS;
+        this.pipeline = Boolean.parseBoolean(options.getOrDefault("pipeline", "false"));
+        this.reconnect = Boolean.parseBoolean(options.getOrDefault("reconnect", "false"));
+        this.compression = Boolean.parseBoolean(options.getOrDefault("compression", "false"));
+        this.textContent = "text".equalsIgnoreCase(options.getOrDefault("content", "random"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println("usage: LoadDriver [--name=value ...], see the class documentation for the options");
+                System.exit(1);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        File keyStore = new File(options.getOrDefault("keystore", "loadtest-relay.p12"));
+        if (!keyStore.exists()) {
+            generateKeyStore(keyStore);
+        }
+
+        LoadDriver driver = new LoadDriver(options);
+        driver.run(keyStore, "external".equalsIgnoreCase(options.get("node")));
+        System.exit(0);
+    }
+
+    private void run(File keyStore, boolean externalNode) throws Exception {
+        emulator = new RelayEmulator(serverContext(keyStore), compression);
+        DestinationServer destination = new DestinationServer(mode);
+        destinationPort = destination.getPort();
+
+        if (externalNode) {
+            System.out.println("Waiting for the node on port " + emulator.getPort()
+                    + ", trust store " + keyStore.getAbsolutePath() + " (password " + STORE_PASSWORD + ")");
+        } else {
+            // the node trusts the emulator through the default SSL context
+            System.setProperty("javax.net.ssl.trustStore", keyStore.getAbsolutePath());
+            System.setProperty("javax.net.ssl.trustStorePassword", STORE_PASSWORD);
+            int port = emulator.getPort();
+            Thread.ofPlatform().daemon().start(() -> RelayConnectionStarter.init("127.0.0.1", port));
+        }
+        emulator.awaitNode(links);
+
+        System.out.println("Running " + sessions + " sessions, " + concurrency + " at a time, " + messages + " x "
+                + payloadSize + " bytes each, " + mode.name().toLowerCase() + " destination, " + links + " relay links");
+
+        long startedAt = System.nanoTime();
+        Thread[] workers = new Thread[Math.min(concurrency, sessions)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Thread.ofVirtual().start(this::runSessions);
+        }
+
+        long lastReportAt = startedAt;
+        long lastBytes = 0;
+        for (Thread worker : workers) {
+            while (!worker.join(java.time.Duration.ofSeconds(1))) {
+                long now = System.nanoTime();
+                long bytes = bytesSent.get() + emulator.getBytesReceived();
+                System.out.printf("  %d/%d sessions, %.3f Gbit/s%n", completed.get() + failed.get(), sessions,
+                        gigabits(bytes - lastBytes, now - lastReportAt));
+                lastReportAt = now;
+                lastBytes = bytes;
+            }
+        }
+        long elapsed = System.nanoTime() - startedAt;
+
+        System.out.println();
+        System.out.printf("sessions     %d completed, %d failed in %.2f s%n", completed.get(), failed.get(), elapsed / 1e9);
+        System.out.printf("rate         %.0f sessions/s%n", completed.get() / (elapsed / 1e9));
+        System.out.printf("throughput   %.3f Gbit/s to the destinations, %.3f Gbit/s back to the relay%n",
+                gigabits(bytesSent.get(), elapsed), gigabits(emulator.getBytesReceived(), elapsed));
+        System.out.println("connect      " + connectLatencies.summary());
+        switch (mode) {
+            case ECHO -> System.out.println("round trip   " + roundTripLatencies.summary());
+            case DOWNLOAD -> System.out.println("download     " + roundTripLatencies.summary());
+            case SINK -> System.out.println("round trip   n/a (sink mode)");
+        }
+        if (compression) {
+            long linkBytes = emulator.getLinkBytesReceived();
+            System.out.printf("compression  %d/%d links, %d bytes back took %d on the links (%.1f%%)%n",
+                    emulator.getCompressedLinks(), links, emulator.getBytesReceived(), linkBytes,
+                    emulator.getBytesReceived() == 0 ? 0 : linkBytes * 100.0 / emulator.getBytesReceived());
+        }
+        if (reconnect) {
+            measureReconnect();
+        }
+
+        emulator.close();
+        destination.close();
+    }
+
+    // One virtual thread, running sessions one after the other until none are left
+    private void runSessions() {
+        Latencies connects = new Latencies();
+        Latencies roundTrips = new Latencies();
+        byte[] payload = content();
+
+        int index;
+        while ((index = nextSession.getAndIncrement()) < sessions) {
+            try {
+                if (runSession(index, payload, connects, roundTrips)) {
+                    completed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (IOException | InterruptedException e) {
+                failed.incrementAndGet();
+            }
+        }
+
+        connectLatencies.merge(connects);
+        roundTripLatencies.merge(roundTrips);
+    }
+
+    private boolean runSession(int index, byte[] payload, Latencies connects, Latencies roundTrips)
+            throws IOException, InterruptedException {
+        RelayEmulator.Session session = emulator.open(index);
+        try {
+            byte[] connect = { 5, 1, 0, 1, 127, 0, 0, 1, (byte) (destinationPort >> 8), (byte) destinationPort };
+            long connectStartedAt = System.nanoTime();
+            emulator.send(session, connect, 0, connect.length);
+            boolean early = pipeline && mode != DestinationServer.Mode.DOWNLOAD && messages > 0;
+            if (early) {
+                emulator.send(session, payload, 0, payload.length);
+                bytesSent.addAndGet(payload.length);
+            }
+            byte[] reply = session.receive(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (reply == null || reply.length < 2 || reply[1] != 0) {
+                return false;
+            }
+            connects.record(System.nanoTime() - connectStartedAt);
+
+            if (mode == DestinationServer.Mode.DOWNLOAD) {
+                return download(session, (long) messages * payload.length, roundTrips);
+            }
+
+            for (int i = 0; i < messages; i++) {
+                // the round trip of a pipelined frame counts from the connect request
+                long sentAt = early && i == 0 ? connectStartedAt : System.nanoTime();
+                if (!early || i > 0) {
+                    emulator.send(session, payload, 0, payload.length);
+                    bytesSent.addAndGet(payload.length);
+                }
+
+                if (mode == DestinationServer.Mode.ECHO) {
+                    // the echo may come back split over several frames
+                    int received = 0;
+                    while (received < payload.length) {
+                        byte[] data = session.receive(timeoutMillis, TimeUnit.MILLISECONDS);
+                        if (data == null || data.length == 0) {
+                            return false;
+                        }
+                        received += data.length;
+                    }
+                    roundTrips.record(System.nanoTime() - sentAt);
+                }
+            }
+            return true;
+        } finally {
+            emulator.close(session);
+        }
+    }
+
+    /* Drops the links and runs sessions until one succeeds again, the node only notices the lost
+    *  links and reconnects with its backoff */
+    private void measureReconnect() throws IOException, InterruptedException {
+        byte[] payload = new byte[payloadSize];
+        Latencies unused = new Latencies();
+
+        long droppedAt = System.nanoTime();
+        emulator.disconnect();
+        emulator.awaitNode(links);
+        long linksBackAt = System.nanoTime();
+
+        int index = sessions;
+        long deadline = linksBackAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!runSession(index++, payload, unused, unused)) {
+            if (System.nanoTime() - deadline > 0) {
+                System.out.println("reconnect    no session served within the timeout");
+                return;
+            }
+        }
+        long servedAt = System.nanoTime();
+        System.out.printf("reconnect    links back in %.1f ms, first session served in %.1f ms%n",
+                (linksBackAt - droppedAt) / 1e6, (servedAt - droppedAt) / 1e6);
+    }
+
+    // Asks the destination for the bytes and waits until they have all come back
+    private boolean download(RelayEmulator.Session session, long size, Latencies downloads)
+            throws IOException, InterruptedException {
+        byte[] request = ByteBuffer.allocate(8).putLong(size).array();
+        long startedAt = System.nanoTime();
+        emulator.send(session, request, 0, request.length);
+        bytesSent.addAndGet(request.length);
+
+        long received = 0;
+        while (received < size) {
+            byte[] data = session.receive(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (data == null || data.length == 0) {
+                return false;
+            }
+            received += data.length;
+        }
+        downloads.record(System.nanoTime() - startedAt);
+        return true;
+    }
+
+    /* Random bytes do not compress. The text is a JSON record with varying values, repeated,
+    *  which deflate shrinks about as much as a typical API response */
+    private byte[] content() {
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (!textContent) {
+            random.nextBytes(payload);
+            return payload;
+        }
+        StringBuilder text = new StringBuilder(payloadSize + 128);
+        while (text.length() < payloadSize) {
+            text.append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"name\":\"session-").append(Long.toHexString(random.nextLong()))
+                    .append("\",\"status\":\"").append(random.nextBoolean() ? "active" : "closed")
+                    .append("\",\"updated_at\":").append(1_700_000_000L + random.nextInt(100_000_000))
+                    .append("}\n");
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, payload, 0, payloadSize);
+        return payload;
+    }
+
+    private static double gigabits(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 8.0 / nanos;
+    }
+
+    private static SSLContext serverContext(File keyStoreFile) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, STORE_PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, STORE_PASSWORD.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    // A self-signed RSA certificate, for the TLS 1.3 and ECDHE_RSA cipher suites of the node
+    private static void generateKeyStore(File keyStore) throws IOException, InterruptedException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "relay", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "30", "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+                .inheritIO()
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to generate " + keyStore);
+        }
+    }
+}
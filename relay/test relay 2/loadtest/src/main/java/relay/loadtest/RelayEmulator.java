@@ -0,0 +1,242 @@
+package relay.loadtest;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import relay.communication.FrameCompressor;
+
+/**
+ * Stand-in for the relay server: accepts the node's TLS connection and multiplexes synthetic SOCKS
+ * sessions over it with the relay framing (6 bytes session id, 2 bytes big-endian length, payload,
+ * a zero length closing the session). Frames from the node are handed to their session's inbox.
+ * <p>
+ * The node may open several links; like the relay, the emulator pins every session to one of them
+ * by a hash of its id.
+ * <p>
+ * With compression the emulator selects {@link FrameCompressor#ALPN_DEFLATE} when the node offers
+ * it, and inflates the frames of the links that negotiated it as the relay does.
+ */
+public final class RelayEmulator implements Closeable {
+
+    public static final int MAX_PAYLOAD_SIZE = 0xFFFF;
+
+    private final SSLServerSocket serverSocket;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong linkBytesReceived = new AtomicLong();
+    private final boolean compression;
+
+    private Link[] links;
+
+    /**
+     * @param compression - true to accept the compressed frames the node offers
+     */
+    public RelayEmulator(SSLContext sslContext, boolean compression) throws IOException {
+        this.serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory()
+                .createServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        this.compression = compression;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Waits for the node to open its links and starts reading their frames
+    public void awaitNode(int linkCount) throws IOException {
+        Link[] accepted = new Link[linkCount];
+        for (int i = 0; i < linkCount; i++) {
+            SSLSocket socket = (SSLSocket) serverSocket.accept();
+            if (compression) {
+                SSLParameters parameters = socket.getSSLParameters();
+                parameters.setApplicationProtocols(new String[]{ FrameCompressor.ALPN_DEFLATE, FrameCompressor.ALPN_PLAIN });
+                socket.setSSLParameters(parameters);
+            }
+            socket.startHandshake();
+            Link link = accepted[i] = new Link(socket);
+            Thread.ofPlatform().daemon().name("relay-emulator-reader-" + i).start(() -> read(link));
+        }
+        links = accepted;
+    }
+
+    // Drops the links as a restarting relay would, the node has to connect again (see awaitNode)
+    public void disconnect() throws IOException {
+        for (Link link : links) {
+            link.socket.close();
+        }
+    }
+
+    public Session open(int index) {
+        Session session = new Session(index, links);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    public void send(Session session, byte[] payload, int offset, int length) throws IOException {
+        Link link = session.link;
+        link.writeLock.lock();
+        try {
+            link.out.write(session.idBytes);
+            link.out.write(length >> 8);
+            link.out.write(length);
+            link.out.write(payload, offset, length);
+            link.out.flush();
+        } finally {
+            link.writeLock.unlock();
+        }
+    }
+
+    public void close(Session session) throws IOException {
+        sessions.remove(session.id);
+        send(session, session.idBytes, 0, 0);
+    }
+
+    // Payload bytes received from the node, over every session, after inflating
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    // Frame payload bytes as they came over the links, flag bytes included
+    public long getLinkBytesReceived() {
+        return linkBytesReceived.get();
+    }
+
+    // Links on which the node compresses its frames
+    public int getCompressedLinks() {
+        int compressed = 0;
+        for (Link link : links) {
+            if (link.compressed) {
+                compressed++;
+            }
+        }
+        return compressed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        if (links != null) {
+            for (Link link : links) {
+                link.socket.close();
+            }
+        }
+    }
+
+    private void read(Link link) {
+        byte[] idBytes = new byte[6];
+        // the extra byte is the dummy input a raw Inflater may want at the end of the stream
+        byte[] frame = new byte[MAX_PAYLOAD_SIZE + 1];
+        byte[] inflated = new byte[MAX_PAYLOAD_SIZE];
+        Inflater inflater = new Inflater(true);
+        try {
+            DataInputStream in = new DataInputStream(link.socket.getInputStream());
+            while (true) {
+                in.readFully(idBytes);
+                int length = in.readUnsignedShort();
+                linkBytesReceived.addAndGet(length);
+                byte[] payload;
+                if (!link.compressed || length == 0) {
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } else {
+                    in.readFully(frame, 0, length);
+                    payload = frame[0] == FrameCompressor.DEFLATE
+                            ? inflate(inflater, frame, length, inflated)
+                            : Arrays.copyOfRange(frame, 1, length);
+                }
+                bytesReceived.addAndGet(payload.length);
+
+                Session session = sessions.get(Session.toID(idBytes));
+                if (session != null) {
+                    session.inbox.add(payload);
+                }
+            }
+        } catch (IOException e) {
+            // link closed
+        }
+    }
+
+    // Every deflated frame is a stream of its own over the preset dictionary
+    private static byte[] inflate(Inflater inflater, byte[] frame, int length, byte[] inflated) throws IOException {
+        inflater.reset();
+        inflater.setDictionary(FrameCompressor.DICTIONARY);
+        inflater.setInput(frame, 1, length);
+        try {
+            int size = inflater.inflate(inflated);
+            if (!inflater.finished()) {
+                throw new IOException("truncated deflate frame");
+            }
+            return Arrays.copyOf(inflated, size);
+        } catch (DataFormatException e) {
+            throw new IOException("invalid deflate frame: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class Link {
+        private final Socket socket;
+        private final OutputStream out;
+        private final boolean compressed;
+        // a lock rather than synchronized, so the session threads do not pin their carrier threads
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private Link(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.compressed = FrameCompressor.ALPN_DEFLATE.equals(socket.getApplicationProtocol());
+            socket.setTcpNoDelay(true);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+    }
+
+    /**
+     * A synthetic SOCKS client. The session id is derived from its index: 10.x.y.z as the client
+     * address, with a port that keeps the ids unique.
+     */
+    public static final class Session {
+        private final byte[] idBytes;
+        private final long id;
+        private final Link link;
+        private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<>();
+
+        private Session(int index, Link[] links) {
+            this.idBytes = new byte[]{ 10, (byte) (index >> 16), (byte) (index >> 8), (byte) index,
+                    (byte) (0x80 | (index >> 24)), 1 };
+            this.id = toID(idBytes);
+            this.link = links[(int) (((id * 0x9E3779B97F4A7C15L) >>> 32) % links.length)];
+        }
+
+        /**
+         * @return the next payload the node sent for this session (empty for a close frame), or
+         *         null after the timeout
+         */
+        public byte[] receive(long timeout, TimeUnit unit) throws InterruptedException {
+            return inbox.poll(timeout, unit);
+        }
+
+        private static long toID(byte[] idBytes) {
+            long id = 0;
+            for (byte b : idBytes) {
+                id = (id << 8) | (b & 0xFF);
+            }
+            return id;
+        }
+    }
+}
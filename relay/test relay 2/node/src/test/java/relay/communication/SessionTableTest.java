@@ -0,0 +1,166 @@
+package relay.communication;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * The table has to find every live session whatever the removed slots on its probe path, stay
+ * bounded while sessions come and go, and never hand a reader another session's context.
+ */
+class SessionTableTest {
+
+    private final SessionTable table = new SessionTable();
+
+    @Test
+    void putGetAndRemove() {
+        ConnectionContext first = context(7);
+        ConnectionContext second = context(7);
+
+        assertNull(table.put(7, first));
+        assertSame(first, table.get(7));
+        assertSame(first, table.put(7, second));
+        assertEquals(1, table.size());
+
+        assertSame(second, table.remove(7));
+        assertNull(table.get(7));
+        assertNull(table.remove(7));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void removeOnlyDropsTheSameContext() {
+        ConnectionContext old = context(3);
+        ConnectionContext reused = context(3);
+        table.put(3, reused);
+
+        // the late cleanup of the old session leaves the new one with the same id alone
+        assertFalse(table.remove(3, old));
+        assertSame(reused, table.get(3));
+        assertTrue(table.remove(3, reused));
+        assertNull(table.get(3));
+    }
+
+    @Test
+    void sessionsBehindRemovedSlotsAreStillFound() {
+        // dense enough for long probe paths, below the load that grows the table
+        int count = 700;
+        for (int id = 0; id < count; id++) {
+            table.put(id, context(id));
+        }
+        for (int id = 0; id < count; id += 2) {
+            table.remove(id);
+        }
+        for (int id = 0; id < count; id++) {
+            ConnectionContext context = table.get(id);
+            if (id % 2 == 0) {
+                assertNull(context, "removed " + id);
+            } else {
+                assertEquals(id, context.getSessionID());
+            }
+        }
+
+        // the new sessions take the removed slots, the old ones are still found
+        for (int id = count; id < 2 * count; id += 2) {
+            table.put(id, context(id));
+        }
+        for (int id = 1; id < 2 * count; id += 2) {
+            ConnectionContext context = table.get(id < count ? id : id - 1);
+            assertEquals(id < count ? id : id - 1, context.getSessionID());
+        }
+        assertEquals(count, table.size());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    void churnDoesNotFillTheTableWithRemovedSlots() {
+        // every put leaves a removed slot behind, the rehash has to clear them or the probes never end
+        int live = 500;
+        for (long id = 0; id < 200_000; id++) {
+            table.put(id, context(id));
+            if (id >= live) {
+                assertEquals(id - live, table.remove(id - live).getSessionID());
+            }
+        }
+        assertEquals(live, table.size());
+        assertNull(table.get(0));
+        assertEquals(199_999, table.get(199_999).getSessionID());
+    }
+
+    @Test
+    void removeAllTakesTheMatchingSessions() {
+        for (int id = 0; id < 100; id++) {
+            table.put(id, context(id));
+        }
+
+        List<ConnectionContext> removed = table.removeAll(context -> context.getSessionID() % 3 == 0);
+
+        assertEquals(34, removed.size());
+        assertEquals(66, table.size());
+        for (int id = 0; id < 100; id++) {
+            assertEquals(id % 3 != 0, table.get(id) != null, "session " + id);
+        }
+    }
+
+    @Test
+    void readersNeverSeeAnotherSessionWhileTheTableChanges() throws Exception {
+        int stable = 2000;
+        for (int id = 0; id < stable; id++) {
+            table.put(id, context(id));
+        }
+
+        // the writer grows the table and churns the ids above the stable ones
+        Thread writer = new Thread(() -> {
+            for (long id = stable; id < stable + 200_000; id++) {
+                table.put(id, context(id));
+                if (id - stable >= 5000) {
+                    table.remove(id - 5000, table.get(id - 5000));
+                }
+            }
+        }, "table-writer");
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                long probe = 0;
+                while (writer.isAlive() && failure.get() == null) {
+                    long id = probe++ % stable;
+                    ConnectionContext context = table.get(id);
+                    if (context == null || context.getSessionID() != id) {
+                        failure.set("stable session " + id + " read as " + context);
+                    }
+                    long churned = stable + (probe * 7919) % 200_000;
+                    context = table.get(churned);
+                    if (context != null && context.getSessionID() != churned) {
+                        failure.set("session " + churned + " read as " + context.getSessionID());
+                    }
+                }
+            }, "table-reader-" + r);
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(stable + 5000, table.size());
+    }
+
+    private static ConnectionContext context(long sessionID) {
+        return new ConnectionContext(null, new byte[6], sessionID, Long.toString(sessionID), null);
+    }
+}
@@ -0,0 +1,115 @@
+package relay.communication;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timeouts have to run once, on the first advance past their tick, whatever the number of
+ * rotations they wait or the timeouts their neighbours cancel and schedule meanwhile. The wheel is
+ * advanced with times in the future instead of waiting for them.
+ */
+class TimerWheelTest {
+
+    private static final long TICK = 1_000_000L;
+
+    // 8 buckets of 1 ms, one rotation is 8 ms
+    private final TimerWheel wheel = new TimerWheel(TICK, 8);
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    void timeoutRunsOnceItsTickHasPassed() {
+        wheel.schedule(5 * TICK, () -> ran.add("a"));
+        long now = System.nanoTime();
+
+        wheel.advance(now + 3 * TICK);
+        assertEquals(List.of(), ran);
+        assertEquals(1, wheel.getPending());
+
+        wheel.advance(now + 7 * TICK);
+        wheel.advance(now + 8 * TICK);
+        assertEquals(List.of("a"), ran);
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    void timeoutBeyondOneRotationWaitsForItsRound() {
+        wheel.schedule(20 * TICK, () -> ran.add("late"));
+        wheel.schedule(4 * TICK, () -> ran.add("early"));
+        long now = System.nanoTime();
+
+        // its bucket comes around twice before its tick
+        wheel.advance(now + 6 * TICK);
+        wheel.advance(now + 13 * TICK);
+        wheel.advance(now + 18 * TICK);
+        assertEquals(List.of("early"), ran);
+
+        wheel.advance(now + 22 * TICK);
+        assertEquals(List.of("early", "late"), ran);
+    }
+
+    @Test
+    void advanceOverManyRotationsRunsEveryDueTimeout() {
+        for (int delay = 1; delay <= 30; delay++) {
+            String name = Integer.toString(delay);
+            wheel.schedule(delay * TICK, () -> ran.add(name));
+        }
+
+        wheel.advance(System.nanoTime() + 100 * TICK);
+        assertEquals(30, ran.size());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    void cancelledTimeoutNeverRuns() {
+        TimerWheel.Timeout timeout = wheel.schedule(2 * TICK, () -> ran.add("cancelled"));
+        wheel.schedule(2 * TICK, () -> ran.add("kept"));
+        timeout.cancel();
+        assertEquals(1, wheel.getPending());
+
+        wheel.advance(System.nanoTime() + 10 * TICK);
+        assertEquals(List.of("kept"), ran);
+
+        // cancelling once it ran changes nothing
+        timeout.cancel();
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    void runningTaskCanCancelAndReschedule() {
+        // two timeouts of the same tick, the one that runs first cancels the other and schedules again
+        TimerWheel.Timeout[] sameTick = new TimerWheel.Timeout[2];
+        for (int i = 0; i < 2; i++) {
+            int self = i;
+            sameTick[i] = wheel.schedule(3 * TICK, () -> {
+                ran.add("ran " + self);
+                sameTick[1 - self].cancel();
+                // into another bucket, past the time of this advance
+                wheel.schedule(5 * TICK, () -> ran.add("rescheduled " + self));
+            });
+        }
+        long now = System.nanoTime();
+
+        wheel.advance(now + 4 * TICK);
+        assertEquals(1, ran.size());
+        assertEquals(1, wheel.getPending());
+
+        wheel.advance(System.nanoTime() + 7 * TICK);
+        String self = ran.get(0).substring("ran ".length());
+        assertEquals(List.of("ran " + self, "rescheduled " + self), ran);
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    void selectTimeoutWaitsForTheNextBucket() {
+        assertEquals(0, wheel.selectTimeout(System.nanoTime()));
+
+        wheel.schedule(5 * TICK, () -> ran.add("a"));
+        long timeout = wheel.selectTimeout(System.nanoTime());
+        assertTrue(timeout >= 1 && timeout <= 6, "select timeout " + timeout);
+    }
+}
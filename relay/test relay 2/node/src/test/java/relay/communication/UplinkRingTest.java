@@ -0,0 +1,190 @@
+package relay.communication;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import relay.metrics.Histogram;
+
+/**
+ * The frames have to come out of the ring back to back and in order, whether they end right at
+ * the end of the ring, wrap behind a padding record or come from many producers at once.
+ */
+class UplinkRingTest {
+
+    private static final int CAPACITY = 1 << 18;
+    // A frame of 64 KB with its header, four of them fill the ring
+    private static final int QUARTER_PAYLOAD = CAPACITY / 4 - FrameEncoder.HEADER_SIZE;
+
+    private final UplinkRing ring = new UplinkRing(CAPACITY, UplinkRing.WaitStrategy.PARK);
+    private final Histogram flushLatency = new Histogram();
+
+    @Test
+    void frameEndingAtTheEndOfTheRingIsWrittenApartFromTheNext() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.offer(id(0), payload(i, QUARTER_PAYLOAD), 0));
+        }
+        drain();
+
+        // the fourth frame fills the ring up to its end, without padding, the fifth starts over
+        assertTrue(ring.offer(id(1), payload(3, QUARTER_PAYLOAD), 0));
+        assertTrue(ring.offer(id(2), payload(4, 100), 0));
+        ByteArrayOutputStream out = drain();
+
+        assertArrayEquals(concat(frame(id(1), payload(3, QUARTER_PAYLOAD)), frame(id(2), payload(4, 100))),
+                out.toByteArray());
+        assertEquals(5, flushLatency.getCount());
+    }
+
+    @Test
+    void frameNotFittingBeforeTheEndIsWrittenFromTheStart() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.offer(id(0), payload(i, QUARTER_PAYLOAD), 0));
+        }
+        assertTrue(ring.offer(id(1), payload(3, 1000), 0));
+        drain();
+
+        // less than the largest frame is left before the end, it goes behind a padding record
+        ByteBuffer large = payload(4, FrameEncoder.MAX_PAYLOAD_SIZE);
+        assertTrue(ring.offer(id(2), large.duplicate(), 0));
+        assertTrue(ring.offer(id(3), payload(5, 10), 0));
+        ByteArrayOutputStream out = drain();
+
+        assertArrayEquals(concat(frame(id(2), large), frame(id(3), payload(5, 10))), out.toByteArray());
+    }
+
+    @Test
+    void fullRingTakesFramesAgainOnceWritten() throws IOException {
+        int offered = 0;
+        while (ring.offer(id(0), payload(offered, QUARTER_PAYLOAD), 0)) {
+            offered++;
+        }
+        assertEquals(4, offered);
+        assertFalse(ring.hasRoom());
+
+        assertEquals(CAPACITY, ring.scan());
+        drain();
+        assertTrue(ring.hasRoom());
+        assertTrue(ring.offer(id(0), payload(offered, QUARTER_PAYLOAD), 0));
+    }
+
+    @Test
+    void fullRecordSlotsTakeFramesAgainOnceWritten() throws IOException {
+        int offered = 0;
+        while (ring.offer(id(0), payload(offered, 4), 0)) {
+            offered++;
+        }
+        // far less than the bytes of the ring, the record slots ran out
+        assertEquals(CAPACITY / 64, offered);
+
+        ByteArrayOutputStream out = drain();
+        assertEquals(offered * (FrameEncoder.HEADER_SIZE + 4), out.size());
+        assertTrue(ring.offer(id(0), payload(offered, 4), 0));
+    }
+
+    @Test
+    void framesOfConcurrentProducersArriveInOrderAndIntact() throws Exception {
+        int producers = 4;
+        int framesEach = 5000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int sequence = 0; sequence < framesEach; sequence++) {
+                    ByteBuffer payload = payload(sequence, stressSize(sequence));
+                    while (!ring.offer(id(producer), payload, System.nanoTime())) {
+                        Thread.yield();
+                    }
+                }
+            }, "ring-producer-" + p);
+            threads[p].setUncaughtExceptionHandler((t, e) -> failure.set(e));
+            threads[p].start();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean producing = true;
+        while (producing) {
+            producing = false;
+            for (Thread thread : threads) {
+                producing |= thread.isAlive();
+            }
+            if (ring.scan() > 0) {
+                ring.writeTo(out, flushLatency);
+            } else {
+                ring.await(System.nanoTime() + 1_000_000L);
+            }
+        }
+        if (ring.scan() > 0) {
+            ring.writeTo(out, flushLatency);
+        }
+        assertNull(failure.get());
+
+        int[] expected = new int[producers];
+        ByteBuffer frames = ByteBuffer.wrap(out.toByteArray());
+        while (frames.hasRemaining()) {
+            byte[] idBytes = new byte[FrameEncoder.ID_SIZE];
+            frames.get(idBytes);
+            int length = frames.getShort() & 0xFFFF;
+            int producer = idBytes[FrameEncoder.ID_SIZE - 1];
+            ByteBuffer payload = frames.slice(frames.position(), length);
+            frames.position(frames.position() + length);
+
+            int sequence = expected[producer]++;
+            assertArrayEquals(id(producer), idBytes);
+            assertEquals(payload(sequence, stressSize(sequence)), payload, "frame " + sequence + " of producer " + producer);
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(framesEach, expected[p]);
+        }
+        assertEquals((long) producers * framesEach, flushLatency.getCount());
+    }
+
+    private ByteArrayOutputStream drain() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ring.scan();
+        ring.writeTo(out, flushLatency);
+        return out;
+    }
+
+    // Mostly small frames, every 50th close to the largest so the producers wrap the ring often
+    private static int stressSize(int sequence) {
+        return sequence % 50 == 0 ? 60000 + sequence % 5000 : 4 + sequence % 300;
+    }
+
+    private static byte[] id(int session) {
+        return new byte[]{ 0, 0, 0, 0, 0, (byte) session };
+    }
+
+    // The sequence number, then bytes that depend on it and on their offset
+    private static ByteBuffer payload(int sequence, int size) {
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        if (size >= 4) {
+            payload.putInt(sequence);
+        }
+        while (payload.hasRemaining()) {
+            payload.put((byte) (sequence * 31 + payload.position()));
+        }
+        return payload.flip();
+    }
+
+    private static byte[] frame(byte[] idBytes, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + payload.remaining());
+        FrameEncoder.encode(idBytes, payload.duplicate(), frame);
+        return frame.array();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        return ByteBuffer.allocate(first.length + second.length).put(first).put(second).array();
+    }
+}
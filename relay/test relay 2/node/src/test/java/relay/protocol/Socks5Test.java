@@ -0,0 +1,62 @@
+package relay.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The truncated and malformed requests the cursor parser has to survive: it must ask for more data
+ * or reject the request, never read past the frame or move its position.
+ */
+class Socks5Test {
+
+    private final Socks5Request request = new Socks5Request();
+
+    @Test
+    void splitRequestNeedsMoreDataAtEveryByte() {
+        byte[] connect = { 5, 1, 0, 3, 11, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 0x01, (byte) 0xBB };
+        for (int length = 0; length < connect.length; length++) {
+            ByteBuffer frame = ByteBuffer.wrap(connect, 0, length).slice();
+            assertEquals(Socks5.ParseResult.NEED_MORE_DATA, Socks5.evaluateRequest(frame, request), "prefix of " + length);
+            assertEquals(0, frame.position());
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(connect);
+        assertEquals(Socks5.ParseResult.COMPLETE, Socks5.evaluateRequest(frame, request));
+        assertEquals("example.com", request.toSocketAddress().getHostString());
+        assertEquals(443, request.getPort());
+        assertEquals(connect.length, frame.position());
+    }
+
+    @Test
+    void domainLengthPastTheFrameNeedsMoreData() {
+        // the name claims 200 bytes, 3 are there
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{ 5, 1, 0, 3, (byte) 200, 'a', 'b', 'c' });
+        assertEquals(Socks5.ParseResult.NEED_MORE_DATA, Socks5.evaluateRequest(frame, request));
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    void emptyDomainIsRejected() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{ 5, 1, 0, 3, 0, 0, 80 });
+        assertEquals(Socks5.ParseResult.INVALID, Socks5.evaluateRequest(frame, request));
+        assertEquals(ReplyCode.SOCKS5.HOST_UNREACHABLE, request.getFailure());
+    }
+
+    @Test
+    void unknownAddressTypeIsRejected() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{ 5, 1, 0, 7, 127, 0, 0, 1, 0, 80 });
+        assertEquals(Socks5.ParseResult.INVALID, Socks5.evaluateRequest(frame, request));
+        assertEquals(ReplyCode.SOCKS5.ADDRESS_TYPE_NOT_SUPPORTED, request.getFailure());
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    void truncatedDatagramHeaderNeedsMoreData() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{ 0, 0, 0, 1, 127, 0 });
+        assertEquals(Socks5.ParseResult.NEED_MORE_DATA, Socks5.evaluateDatagram(frame, request));
+        assertEquals(0, frame.position());
+    }
+}